@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox;
+
+// Where a resolved variable lives at runtime.
+enum Access {
+    // in the interpreter's globals, looked up by name
+    GLOBAL,
+    // in a slot of the current frame
+    LOCAL,
+    // in a Cell held in a slot of the current frame
+    LOCAL_CELL,
+    // copied into the closure when it was created
+    UPVALUE,
+    // in a Cell the closure captured when it was created
+    UPVALUE_CELL
+}
@@ -0,0 +1,765 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Compiles a resolved syntax tree into bytecode for the VM. Locals,
+// upvalues and scopes are tracked the same way as in clox/compiler.c, so
+// by the time this runs the Resolver has already reported the errors.
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final int UINT8_COUNT = 256;
+    private static final int UINT16_MAX = 65535;
+
+    private enum FunctionType {
+        FUNCTION,
+        INITIALIZER,
+        METHOD,
+        SCRIPT,
+        STATIC
+    }
+
+    private static class Local {
+        final String name;
+        final int depth;
+        // variables declared without an initializer, or still inside
+        // their own initializer, have to be checked before they're read
+        boolean isInitialized;
+        boolean isCaptured = false;
+
+        Local(String name, int depth, boolean isInitialized) {
+            this.name = name;
+            this.depth = depth;
+            this.isInitialized = isInitialized;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+        final boolean isInitialized;
+
+        Upvalue(int index, boolean isLocal, boolean isInitialized) {
+            this.index = index;
+            this.isLocal = isLocal;
+            this.isInitialized = isInitialized;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int start;
+        final int scopeDepth;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int start, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.start = start;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        final Map<Object, Integer> constants = new HashMap<>();
+        int scopeDepth = 0;
+        Loop loop = null;
+
+        FunctionState(FunctionState enclosing, ObjFunction function,
+                FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current = null;
+    private int line = 1;
+
+    BytecodeCompiler(VM vm) {
+        this.vm = vm;
+    }
+
+    ObjFunction compile(List<Stmt> statements) {
+        beginFunction(new ObjFunction("script"), FunctionType.SCRIPT);
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        return endFunction();
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        String className = stmt.name.lexeme;
+        emitShortOp(OP_CLASS, identifierConstant(className));
+        defineVariable(className, true);
+
+        boolean hasSuperclass = !stmt.mixins.isEmpty();
+        if (hasSuperclass) {
+            beginScope();
+            for (Expr.Variable mixin : stmt.mixins) {
+                getVariable(className);
+                compile(mixin);
+                emitByte(OP_INHERIT);
+            }
+            // super refers to first superclass
+            compile(stmt.mixins.get(0));
+            addLocal("super", true);
+        }
+
+        getVariable(className);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme.equals("init")
+                ? FunctionType.INITIALIZER
+                : FunctionType.METHOD;
+            function(method.name.lexeme, method.params, method.body, type);
+            emitShortOp(OP_METHOD, identifierConstant(method.name.lexeme));
+        }
+        for (Stmt.Function getter : stmt.getters) {
+            function(getter.name.lexeme, getter.params, getter.body,
+                    FunctionType.METHOD);
+            emitShortOp(OP_GETTER, identifierConstant(getter.name.lexeme));
+        }
+        for (Stmt.Function method : stmt.statics) {
+            function(method.name.lexeme, method.params, method.body,
+                    FunctionType.STATIC);
+            emitShortOp(OP_STATIC_METHOD,
+                    identifierConstant(method.name.lexeme));
+        }
+        emitByte(OP_POP);
+
+        if (hasSuperclass) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitByte(OP_POP);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        String name = stmt.name.lexeme;
+        int global = -1;
+        if (current.scopeDepth > 0) {
+            // declared before the body so the function can call itself
+            addLocal(name, true);
+        } else {
+            global = globalSlot(name);
+        }
+        function(name, stmt.params, stmt.body, FunctionType.FUNCTION);
+        if (global != -1) emitShortOp(OP_DEFINE_GLOBAL, global);
+        return null;
+    }
+
+    // An else-if chain nests as deep as it is long, so its links are
+    // compiled in a loop. Every branch that runs jumps to the end of the
+    // whole chain; once the oldest of those jumps would get too long, the
+    // pending ones are sent to a relay jump placed in the middle.
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        List<Integer> endJumps = new ArrayList<>();
+        Stmt next = stmt;
+        while (next instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If)next;
+            if (!endJumps.isEmpty() && current.function.chunk.count
+                    - endJumps.get(0) > UINT16_MAX / 2) {
+                int skip = emitJump(OP_JUMP);
+                for (int jump : endJumps) patchJump(jump);
+                endJumps.clear();
+                endJumps.add(emitJump(OP_JUMP));
+                patchJump(skip);
+            }
+
+            compile(branch.condition);
+            int thenJump = emitJump(OP_JUMP_IF_FALSE);
+            emitByte(OP_POP);
+            compile(branch.thenBranch);
+            endJumps.add(emitJump(OP_JUMP));
+            patchJump(thenJump);
+            emitByte(OP_POP);
+            next = branch.elseBranch;
+        }
+        if (next != null) compile(next);
+        for (int jump : endJumps) patchJump(jump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitByte(OP_PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null) {
+            emitReturn();
+        } else {
+            compile(stmt.value);
+            emitByte(OP_RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        String name = stmt.name.lexeme;
+        Local local = null;
+        if (current.scopeDepth > 0) {
+            // declared before the initializer, like the Resolver does, so
+            // a closure in it can refer to the variable; the initializer's
+            // value lands in the local's slot
+            addLocal(name, false);
+            local = current.locals.get(current.locals.size() - 1);
+        }
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitByte(OP_UNINITIALIZED);
+        }
+        if (local != null) {
+            local.isInitialized = stmt.initializer != null;
+        } else {
+            emitShortOp(OP_DEFINE_GLOBAL, globalSlot(name));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emitByte(OP_POP);
+
+        Loop loop = new Loop(current.loop, loopStart, current.scopeDepth);
+        current.loop = loop;
+        compile(stmt.body);
+        current.loop = loop.enclosing;
+
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emitByte(OP_POP);
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OP_JUMP_IF_FALSE);
+        emitByte(OP_POP);
+
+        // continue isn't allowed in a for loop, so nothing jumps to the
+        // increment
+        Loop loop = new Loop(current.loop, loopStart, current.scopeDepth);
+        current.loop = loop;
+        compile(stmt.body);
+        current.loop = loop.enclosing;
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emitByte(OP_POP);
+        }
+
+        emitLoop(loopStart);
+        patchJump(exitJump);
+        emitByte(OP_POP);
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        // the Resolver only allows break inside a loop of this function
+        Loop loop = current.loop;
+        discardLocals(loop.scopeDepth);
+        loop.breakJumps.add(emitJump(OP_JUMP));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        line = stmt.keyword.line;
+        Loop loop = current.loop;
+        discardLocals(loop.scopeDepth);
+        emitLoop(loop.start);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.left);
+        int elseJump = emitJump(OP_JUMP_IF_FALSE);
+        emitByte(OP_POP);
+        compile(expr.middle);
+        int endJump = emitJump(OP_JUMP);
+        patchJump(elseJump);
+        emitByte(OP_POP);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        setVariable(expr.name.lexeme);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        operators(expr);
+        return null;
+    }
+
+    // A chain like a + b + c + ... leans left as deep as it is long, so
+    // its left spine is walked in a loop: the innermost operand is
+    // compiled first and then each operator's right side and instruction.
+    private void operators(Expr expr) {
+        List<Expr> spine = new ArrayList<>();
+        while (expr instanceof Expr.Binary || expr instanceof Expr.Logical) {
+            spine.add(expr);
+            expr = expr instanceof Expr.Binary
+                ? ((Expr.Binary)expr).left : ((Expr.Logical)expr).left;
+        }
+
+        compile(expr);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            Expr operator = spine.get(i);
+            if (operator instanceof Expr.Binary) {
+                binary((Expr.Binary)operator);
+            } else {
+                logical((Expr.Logical)operator);
+            }
+        }
+    }
+
+    private void binary(Expr.Binary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emitBytes(OP_EQUAL, OP_NOT); break;
+            case EQUAL_EQUAL: emitByte(OP_EQUAL); break;
+            case GREATER: emitByte(OP_GREATER); break;
+            case GREATER_EQUAL: emitByte(OP_GREATER_EQUAL); break;
+            case LESS: emitByte(OP_LESS); break;
+            case LESS_EQUAL: emitByte(OP_LESS_EQUAL); break;
+            case PLUS: emitByte(OP_ADD); break;
+            case MINUS: emitByte(OP_SUBTRACT); break;
+            case STAR: emitByte(OP_MULTIPLY); break;
+            case SLASH: emitByte(OP_DIVIDE); break;
+        }
+    }
+
+    @Override
+    public Void visitFusedBinaryExpr(Expr.FusedBinary expr) {
+        // fusing only pays off in the tree-walking interpreter
+        return visitBinaryExpr(expr.original);
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            compile(get.object);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitShortOp(OP_INVOKE, identifierConstant(get.name.lexeme));
+            emitByte(expr.arguments.size());
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super callee = (Expr.Super)expr.callee;
+            getVariable("this");
+            compileArguments(expr.arguments);
+            getVariable("super");
+            line = expr.paren.line;
+            emitShortOp(OP_SUPER_INVOKE,
+                    identifierConstant(callee.method.lexeme));
+            emitByte(expr.arguments.size());
+        } else {
+            compile(expr.callee);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitBytes(OP_CALL, (byte)expr.arguments.size());
+        }
+        return null;
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitShortOp(OP_GET_PROPERTY, identifierConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        function(null, expr.params, expr.body, FunctionType.FUNCTION);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitByte(OP_NIL);
+        } else if (expr.value instanceof Boolean) {
+            emitByte((boolean)expr.value ? OP_TRUE : OP_FALSE);
+        } else {
+            emitShortOp(OP_CONSTANT, makeConstant(expr.value));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        operators(expr);
+        return null;
+    }
+
+    private void logical(Expr.Logical expr) {
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OP_JUMP_IF_FALSE);
+            int endJump = emitJump(OP_JUMP);
+            patchJump(elseJump);
+            emitByte(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OP_JUMP_IF_FALSE);
+            emitByte(OP_POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitShortOp(OP_SET_PROPERTY, identifierConstant(expr.name.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.method.line;
+        getVariable("this");
+        getVariable("super");
+        emitShortOp(OP_GET_SUPER, identifierConstant(expr.method.lexeme));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        getVariable("this");
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG: emitByte(OP_NOT); break;
+            case MINUS: emitByte(OP_NEGATE); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        getVariable(expr.name.lexeme);
+        return null;
+    }
+
+    private void function(String name, List<Token> params, List<Stmt> body,
+            FunctionType type) {
+        ObjFunction function = new ObjFunction(name);
+        FunctionState state = beginFunction(function, type);
+        beginScope();
+        for (Token param : params) {
+            function.arity++;
+            addLocal(param.lexeme, true);
+        }
+        if (type == FunctionType.STATIC) {
+            // static methods aren't bound, so this is nil in them
+            emitByte(OP_NIL);
+            addLocal("this", true);
+        }
+        for (Stmt statement : body) {
+            compile(statement);
+        }
+        endFunction();
+
+        emitShortOp(OP_CLOSURE, makeConstant(function));
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0);
+            emitByte(upvalue.index);
+        }
+    }
+
+    private FunctionState beginFunction(ObjFunction function,
+            FunctionType type) {
+        current = new FunctionState(current, function, type);
+        // slot zero holds the receiver in methods and the callee otherwise
+        String slotZero = type == FunctionType.METHOD
+                || type == FunctionType.INITIALIZER ? "this" : "";
+        current.locals.add(new Local(slotZero, 0, true));
+        return current;
+    }
+
+    private ObjFunction endFunction() {
+        emitReturn();
+        ObjFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        current = current.enclosing;
+        return function;
+    }
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() &&
+                locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emitByte(local.isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+        }
+    }
+
+    // pops the locals deeper than depth without ending their scopes, for
+    // jumping out of a loop body
+    private void discardLocals(int depth) {
+        List<Local> locals = current.locals;
+        for (int i = locals.size() - 1;
+                i >= 0 && locals.get(i).depth > depth; i--) {
+            emitByte(locals.get(i).isCaptured ? OP_CLOSE_UPVALUE : OP_POP);
+        }
+    }
+
+    private void addLocal(String name, boolean isInitialized) {
+        if (current.locals.size() == UINT8_COUNT) {
+            Lox.error(line, "Too many local variables in function.");
+            return;
+        }
+        current.locals.add(
+                new Local(name, current.scopeDepth, isInitialized));
+    }
+
+    private void defineVariable(String name, boolean isInitialized) {
+        if (current.scopeDepth > 0) {
+            addLocal(name, isInitialized);
+            return;
+        }
+        emitShortOp(OP_DEFINE_GLOBAL, globalSlot(name));
+    }
+
+    private void getVariable(String name) {
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emitBytes(OP_GET_LOCAL, (byte)arg);
+            if (!current.locals.get(arg).isInitialized) {
+                emitShortOp(OP_CHECK_INITIALIZED, identifierConstant(name));
+            }
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            emitBytes(OP_GET_UPVALUE, (byte)arg);
+            if (!current.upvalues.get(arg).isInitialized) {
+                emitShortOp(OP_CHECK_INITIALIZED, identifierConstant(name));
+            }
+        } else {
+            emitShortOp(OP_GET_GLOBAL, globalSlot(name));
+        }
+    }
+
+    private void setVariable(String name) {
+        int arg = resolveLocal(current, name);
+        if (arg != -1) {
+            emitBytes(OP_SET_LOCAL, (byte)arg);
+        } else if ((arg = resolveUpvalue(current, name)) != -1) {
+            emitBytes(OP_SET_UPVALUE, (byte)arg);
+        } else {
+            emitShortOp(OP_SET_GLOBAL, globalSlot(name));
+        }
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            if (state.locals.get(i).name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            Local captured = state.enclosing.locals.get(local);
+            captured.isCaptured = true;
+            return addUpvalue(state, local, true, captured.isInitialized);
+        }
+        int upvalue = resolveUpvalue(state.enclosing, name);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false,
+                    state.enclosing.upvalues.get(upvalue).isInitialized);
+        }
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal,
+            boolean isInitialized) {
+        List<Upvalue> upvalues = state.upvalues;
+        for (int i = 0; i < upvalues.size(); i++) {
+            Upvalue upvalue = upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) {
+                return i;
+            }
+        }
+        if (upvalues.size() == UINT8_COUNT) {
+            Lox.error(line, "Too many closure variables in function.");
+            return 0;
+        }
+        upvalues.add(new Upvalue(index, isLocal, isInitialized));
+        return upvalues.size() - 1;
+    }
+
+    private int identifierConstant(String name) {
+        return makeConstant(name);
+    }
+
+    // Globals are numbered once, here, so the VM indexes an array
+    // instead of hashing their names every time it runs.
+    private int globalSlot(String name) {
+        int slot = vm.globalSlot(name);
+        if (slot > UINT16_MAX) {
+            Lox.error(line, "Too many global variables.");
+            return 0;
+        }
+        return slot;
+    }
+
+    private int makeConstant(Object value) {
+        // functions are never shared, everything else is deduplicated
+        if (!(value instanceof ObjFunction)) {
+            Integer index = current.constants.get(value);
+            if (index != null) return index;
+        }
+        int index = current.function.chunk.addConstant(value);
+        if (index > UINT16_MAX) {
+            Lox.error(line, "Too many constants in one chunk.");
+            return 0;
+        }
+        if (!(value instanceof ObjFunction)) {
+            current.constants.put(value, index);
+        }
+        return index;
+    }
+
+    private void emitByte(int b) {
+        current.function.chunk.write((byte)b, line);
+    }
+
+    private void emitBytes(byte b1, byte b2) {
+        emitByte(b1);
+        emitByte(b2);
+    }
+
+    private void emitShortOp(byte op, int operand) {
+        emitByte(op);
+        emitByte((operand >> 8) & 0xff);
+        emitByte(operand & 0xff);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitBytes(OP_GET_LOCAL, (byte)0);
+        } else {
+            emitByte(OP_NIL);
+        }
+        emitByte(OP_RETURN);
+    }
+
+    private int emitJump(byte instruction) {
+        emitByte(instruction);
+        emitByte(0xff);
+        emitByte(0xff);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset) {
+        Chunk chunk = current.function.chunk;
+        int jump = chunk.count - offset - 2;
+        if (jump > UINT16_MAX) {
+            Lox.error(line, "Too much code to jump over.");
+        }
+        chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+        chunk.code[offset + 1] = (byte)(jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart) {
+        emitByte(OP_LOOP);
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > UINT16_MAX) Lox.error(line, "Loop body too large.");
+        emitByte((offset >> 8) & 0xff);
+        emitByte(offset & 0xff);
+    }
+}
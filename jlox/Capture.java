@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+// One variable a closure copies when it is created: a slot of the frame
+// creating it, or one of the creating function's own upvalues.
+final class Capture {
+    final boolean isLocal;
+    final int index;
+
+    Capture(boolean isLocal, int index) {
+        this.isLocal = isLocal;
+        this.index = index;
+    }
+}
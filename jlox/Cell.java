@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+// Holds a local variable that a closure captures and that may change
+// after the closure is created, so the frame and every closure that
+// captured it see the same value. Each run of the declaration creates a
+// new Cell.
+final class Cell {
+    Object value;
+
+    Cell(Object value) {
+        this.value = value;
+    }
+}
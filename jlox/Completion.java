@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox;
+
+// How a statement finished executing. The value of a RETURN is held by
+// the interpreter until the enclosing call picks it up.
+enum Completion {
+    NORMAL, BREAK, CONTINUE, RETURN
+}
@@ -1,61 +1,52 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
-
+// The frame of one call: a slot for every local variable of the function,
+// including those of its blocks, and the values its closure captured.
+// Nothing links it to the frame of the enclosing function, so finding a
+// variable never walks a chain.
 class Environment {
-    final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    static final Object[] NO_UPVALUES = new Object[0];
 
-    Environment() {
-        enclosing = null;
-    }
+    final Object[] upvalues;
+    private final Object[] values;
 
-    Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    Environment(Object[] upvalues, int size) {
+        this.upvalues = upvalues;
+        this.values = new Object[size];
     }
 
-    void define(String name, Object value) {
-        values.put(name, value);
+    void define(int slot, Object value) {
+        values[slot] = value;
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
-        }
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+    Object get(int slot) {
+        return values[slot];
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Cell getCell(int slot) {
+        return (Cell)values[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    Cell getUpvalueCell(int index) {
+        return (Cell)upvalues[index];
     }
 
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+    // wraps the parameters that closures capture and assign
+    void moveToCells(int[] slots) {
+        for (int slot : slots) {
+            values[slot] = new Cell(values[slot]);
         }
-        return environment;
     }
 
-    Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
-        if (enclosing != null) {
-            return enclosing.get(name);
+    // the values a closure created in this frame captures
+    Object[] capture(Capture[] captures) {
+        if (captures.length == 0) return NO_UPVALUES;
+        Object[] captured = new Object[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            Capture capture = captures[i];
+            captured[i] = capture.isLocal
+                ? values[capture.index] : upvalues[capture.index];
         }
-        throw new RuntimeError(name,
-                "Undefined variable '" + name.lexeme + "'.");
+        return captured;
     }
 }
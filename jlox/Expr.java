@@ -8,6 +8,7 @@ abstract class Expr {
         R visitAssignExpr(Assign expr);
         R visitBinaryExpr(Binary expr);
         R visitCallExpr(Call expr);
+        R visitFusedBinaryExpr(FusedBinary expr);
         R visitGetExpr(Get expr);
         R visitGroupingExpr(Grouping expr);
         R visitLambdaExpr(Lambda expr);
@@ -50,6 +51,9 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        Access access;
+        int slot;
+        Cell global;
     }
 
     static class Binary extends Expr {
@@ -67,6 +71,8 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        Specialization specialization = Specialization.UNINITIALIZED;
+        boolean isLongChain;
     }
 
     static class Call extends Expr {
@@ -86,6 +92,23 @@ abstract class Expr {
         final List<Expr> arguments;
     }
 
+    static class FusedBinary extends Expr {
+        FusedBinary(Binary original, int slot, double constant) {
+            this.original = original;
+            this.slot = slot;
+            this.constant = constant;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitFusedBinaryExpr(this);
+        }
+
+        final Binary original;
+        final int slot;
+        final double constant;
+    }
+
     static class Get extends Expr {
         Get(Expr object, Token name) {
             this.object = object;
@@ -99,6 +122,7 @@ abstract class Expr {
 
         final Expr object;
         final Token name;
+        InlineCache cache;
     }
 
     static class Grouping extends Expr {
@@ -127,6 +151,9 @@ abstract class Expr {
 
         final List<Token> params;
         final List<Stmt> body;
+        int frameSize;
+        Capture[] captures;
+        int[] cellSlots;
     }
 
     static class Literal extends Expr {
@@ -157,6 +184,7 @@ abstract class Expr {
         final Expr left;
         final Token operator;
         final Expr right;
+        boolean isLongChain;
     }
 
     static class Set extends Expr {
@@ -174,6 +202,7 @@ abstract class Expr {
         final Expr object;
         final Token name;
         final Expr value;
+        InlineCache cache;
     }
 
     static class Super extends Expr {
@@ -189,6 +218,10 @@ abstract class Expr {
 
         final Token keyword;
         final Token method;
+        Access access;
+        int slot;
+        Access thisAccess;
+        int thisSlot;
     }
 
     static class This extends Expr {
@@ -202,6 +235,8 @@ abstract class Expr {
         }
 
         final Token keyword;
+        Access access;
+        int slot;
     }
 
     static class Unary extends Expr {
@@ -217,6 +252,7 @@ abstract class Expr {
 
         final Token operator;
         final Expr right;
+        Specialization specialization = Specialization.UNINITIALIZED;
     }
 
     static class Variable extends Expr {
@@ -230,6 +266,9 @@ abstract class Expr {
         }
 
         final Token name;
+        Access access;
+        int slot;
+        Cell global;
     }
 
 
@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+// Per-site cache for a property get or set, keyed on the receiver's shape.
+// Since every class has its own shape tree, a shape also pins down the
+// class, so methods and getters can be cached along with field indexes.
+// A site remembers up to MAX_ENTRIES shapes; after that it's megamorphic
+// and new shapes always take the slow path.
+class InlineCache {
+    private static final int MAX_ENTRIES = 4;
+
+    // every cache created while --ic-stats is on, null otherwise
+    static List<InlineCache> sites = null;
+
+    final String kind;
+    final Token name;
+    // the last entry is scratch space that describes the latest lookup
+    // once the site is megamorphic
+    private final Shape[] shapes = new Shape[MAX_ENTRIES + 1];
+    // field index, or -1 for a method or getter
+    final int[] indexes = new int[MAX_ENTRIES + 1];
+    // the method or getter a get resolved to
+    final LoxFunction[] methods = new LoxFunction[MAX_ENTRIES + 1];
+    // the shape after a set that added the field, null if it already existed
+    final Shape[] transitions = new Shape[MAX_ENTRIES + 1];
+    private int count = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    InlineCache(String kind, Token name) {
+        this.kind = kind;
+        this.name = name;
+        if (sites != null) sites.add(this);
+    }
+
+    // Returns the entry for shape, or -1 on a miss.
+    int lookup(Shape shape) {
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) {
+                hits++;
+                return i;
+            }
+        }
+        misses++;
+        return -1;
+    }
+
+    // Returns the entry it was stored in.
+    int add(Shape shape, int index, LoxFunction method, Shape transition) {
+        int entry = count;
+        if (count < MAX_ENTRIES) count++;
+        shapes[entry] = shape;
+        indexes[entry] = index;
+        methods[entry] = method;
+        transitions[entry] = transition;
+        return entry;
+    }
+
+    static void printStats() {
+        List<InlineCache> used = new ArrayList<>();
+        for (InlineCache site : sites) {
+            if (site.hits + site.misses > 0) used.add(site);
+        }
+        used.sort(Comparator.comparingInt(site -> site.name.line));
+
+        System.err.println("Inline cache hit rates:");
+        for (InlineCache site : used) {
+            System.err.printf("[line %d] %s .%s: %d hits, %d misses, " +
+                    "%d shapes (%.1f%%)\n", site.name.line, site.kind,
+                    site.name.lexeme, site.hits, site.misses, site.count,
+                    100.0 * site.hits / (site.hits + site.misses));
+        }
+    }
+}
@@ -11,9 +11,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
-    static class BreakException extends RuntimeException {}
-    static class ContinueException extends RuntimeException {}
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
     static class RuntimeErrorInFunction extends RuntimeException {
         final String message;
         RuntimeErrorInFunction(String message) {
@@ -21,20 +19,50 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    final Environment globals = new Environment();
-    private Environment environment = globals;
-    private static final Object uninitialized = new Object();
-    private final Map<Expr, Integer> locals = new HashMap<>();
+    // carries the boxed value of an expression that evaluateNumber
+    // expected to be a number
+    private static class UnexpectedResult extends Exception {
+        final Object value;
+        UnexpectedResult(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    // A call made by `return f(...)` that hasn't run yet. It is also the
+    // value the function body returns, telling the caller to run it.
+    private static class TailCall {
+        LoxCallable callee;
+        LoxInstance receiver;
+        Object[] arguments;
+    }
+
+    // One cell per global name, created the first time the Resolver sees
+    // the name and shared by every reference to it, so reading a global
+    // never hashes its name. The cell holds undefined until a definition
+    // runs, which lets the REPL define a name after code that uses it.
+    private final Map<Symbol, Cell> globals = new HashMap<>();
+    // null at top level, where variables live in globals
+    private Environment environment = null;
+    static final Object uninitialized = new Object();
+    static final Object undefined = new Object();
+    private Object returnValue = null;
+    private final TailCall pendingCall = new TailCall();
 
     Interpreter() {
-        globals.define("clock", new LoxCallable() {
+        defineGlobal("clock", new LoxCallable() {
             @Override
             public int arity() { return 0; }
 
             @Override
             public Object call(
                     Interpreter interpreter,
-                    List<Object> arguments) {
+                    Object[] arguments) {
+                return call0(interpreter);
+            }
+
+            @Override
+            public Object call0(Interpreter interpreter) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
@@ -42,18 +70,23 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public String toString() { return "<native fn>"; }
         });
 
-        globals.define("open", new LoxCallable() {
+        defineGlobal("open", new LoxCallable() {
             @Override
             public int arity() { return 2; }
 
             @Override
             public Object call(
                     Interpreter interpreter,
-                    List<Object> arguments) {
+                    Object[] arguments) {
+                return call2(interpreter, arguments[0], arguments[1]);
+            }
+
+            @Override
+            public Object call2(Interpreter interpreter, Object a, Object b) {
                 try {
-                    String path = (String)(arguments.get(0));
+                    String path = (String)a;
                     LoxFile.FileMode mode = null;
-                    switch ((String)(arguments.get(1))) {
+                    switch ((String)b) {
                     case "r": mode = LoxFile.FileMode.READ; break;
                     case "w": mode = LoxFile.FileMode.WRITE; break;
                     default:
@@ -71,15 +104,20 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public String toString() { return "<native fn>"; }
         });
 
-        globals.define("close", new LoxCallable() {
+        defineGlobal("close", new LoxCallable() {
             @Override
             public int arity() { return 1; }
 
             @Override
             public Object call(
                     Interpreter interpreter,
-                    List<Object> arguments) {
-                LoxFile file = (LoxFile)(arguments.get(0));
+                    Object[] arguments) {
+                return call1(interpreter, arguments[0]);
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Object a) {
+                LoxFile file = (LoxFile)a;
                 file.close();
                 return null;
             }
@@ -88,15 +126,20 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public String toString() { return "<native fn>"; }
         });
 
-        globals.define("read", new LoxCallable() {
+        defineGlobal("read", new LoxCallable() {
             @Override
             public int arity() { return 1; }
 
             @Override
             public Object call(
                     Interpreter interpreter,
-                    List<Object> arguments) {
-                LoxFile file = (LoxFile)(arguments.get(0));
+                    Object[] arguments) {
+                return call1(interpreter, arguments[0]);
+            }
+
+            @Override
+            public Object call1(Interpreter interpreter, Object a) {
+                LoxFile file = (LoxFile)a;
                 return file.read();
             }
 
@@ -104,16 +147,21 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             public String toString() { return "<native fn>"; }
         });
 
-        globals.define("write", new LoxCallable() {
+        defineGlobal("write", new LoxCallable() {
             @Override
             public int arity() { return 2; }
 
             @Override
             public Object call(
                     Interpreter interpreter,
-                    List<Object> arguments) {
-                LoxFile file = (LoxFile)(arguments.get(0));
-                String text = (String)(arguments.get(1));
+                    Object[] arguments) {
+                return call2(interpreter, arguments[0], arguments[1]);
+            }
+
+            @Override
+            public Object call2(Interpreter interpreter, Object a, Object b) {
+                LoxFile file = (LoxFile)a;
+                String text = (String)b;
                 file.write(text);
                 return null;
             }
@@ -133,34 +181,54 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    public void executeBlock(List<Stmt> statements, Environment environment) {
+    public Completion executeBlock(List<Stmt> statements,
+            Environment environment) {
         Environment previous = this.environment;
         try {
             this.environment = environment;
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            return execute(statements);
         } finally {
             this.environment = previous;
         }
     }
 
+    private Completion execute(List<Stmt> statements) {
+        // indexed so the loop doesn't allocate an iterator
+        for (int i = 0; i < statements.size(); i++) {
+            Completion completion = execute(statements.get(i));
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    // hands the value of the last return statement to the caller
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
     private Object evaluate(Expr expr) {
         return expr.accept(this);
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.hasEnvironment) {
+            return executeBlock(stmt.statements,
+                    new Environment(Environment.NO_UPVALUES, stmt.frameSize));
+        }
+        // inside a function the block's variables live in the function's
+        // frame, and at top level it has none
+        return execute(stmt.statements);
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         List<LoxClass> superclasses = new ArrayList<>();
         for (Expr.Variable mixin : stmt.mixins) {
             Object superclass = evaluate(mixin);
@@ -171,128 +239,224 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             superclasses.add((LoxClass)superclass);
         }
 
-        environment.define(stmt.name.lexeme, null);
+        // the methods may capture the class before it exists
+        Cell cell = stmt.isCell ? declareCell(stmt.slot) : null;
+        if (cell == null) define(stmt.slot, stmt.name, null);
 
+        Environment enclosing = environment;
         if (!superclasses.isEmpty()) {
-            environment = new Environment(environment);
+            // outside any function, super needs a frame of its own
+            if (environment == null) {
+                environment = new Environment(Environment.NO_UPVALUES, 1);
+            }
             // super refers to first superclass
-            environment.define("super", superclasses.get(0));
-
+            environment.define(stmt.superSlot, superclasses.get(0));
         }
 
-        Map<String, LoxFunction> methods = new HashMap<>();
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment,
-                    method.name.lexeme.equals("init"), false);
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method,
+                    capture(method.captures),
+                    method.name.symbol == Symbol.INIT, false);
+            methods.put(method.name.symbol, function);
         }
 
-        Map<String, LoxFunction> getters = new HashMap<>();
+        Map<Symbol, LoxFunction> getters = new HashMap<>();
         for (Stmt.Function getter : stmt.getters) {
-            LoxFunction function = new LoxFunction(getter, environment, false, true);
-            getters.put(getter.name.lexeme, function);
+            LoxFunction function = new LoxFunction(getter,
+                    capture(getter.captures), false, true);
+            getters.put(getter.name.symbol, function);
         }
 
-        Map<String, LoxFunction> statics = new HashMap<>();
+        Map<Symbol, LoxFunction> statics = new HashMap<>();
         for (Stmt.Function method : stmt.statics) {
-            LoxFunction function = new LoxFunction(method, environment, false, false);
-            statics.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method,
+                    capture(method.captures), false, false);
+            statics.put(method.name.symbol, function);
         }
 
         LoxClass cls = new LoxClass(stmt.name.lexeme, superclasses, methods, getters, statics);
 
-        if (!superclasses.isEmpty()) {
-            environment = environment.enclosing;
+        environment = enclosing;
+        if (cell != null) {
+            cell.value = cls;
+        } else {
+            define(stmt.slot, stmt.name, cls);
         }
-        environment.assign(stmt.name, cls);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.access, expr.slot);
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        if (stmt.isCell) {
+            // a recursive function captures itself before it exists
+            Cell cell = declareCell(stmt.slot);
+            cell.value = new LoxFunction(stmt, capture(stmt.captures),
+                    false, false);
+            return Completion.NORMAL;
+        }
+        LoxFunction function = new LoxFunction(stmt, capture(stmt.captures),
+                false, false);
+        define(stmt.slot, stmt.name, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
-        if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
-        } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+    public Completion visitIfStmt(Stmt.If stmt) {
+        // else-if chains are walked in a loop rather than a call per link
+        while (!test(stmt.condition)) {
+            if (!(stmt.elseBranch instanceof Stmt.If)) {
+                if (stmt.elseBranch == null) return Completion.NORMAL;
+                return execute(stmt.elseBranch);
+            }
+            stmt = (Stmt.If)stmt.elseBranch;
         }
-        return null;
+        return execute(stmt.thenBranch);
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
-        throw new Return(value);
+        if (stmt.isTailCall) {
+            value = tailCall((Expr.Call)stmt.value);
+        } else if (stmt.value != null) {
+            value = evaluate(stmt.value);
+        }
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        if (stmt.isCell) {
+            // a closure in the initializer may capture it
+            Cell cell = declareCell(stmt.slot);
+            cell.value = stmt.initializer == null
+                ? uninitialized : evaluate(stmt.initializer);
+            return Completion.NORMAL;
+        }
         Object value = uninitialized;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.slot, stmt.name, value);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new BreakException();
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
-    public Void visitContinueStmt(Stmt.Continue stmt) {
-        throw new ContinueException();
+    public Completion visitContinueStmt(Stmt.Continue stmt) {
+        return Completion.CONTINUE;
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
-        try {
-            while (isTruthy(evaluate(stmt.condition))) {
-                try {
-                    execute(stmt.body);
-                } catch (ContinueException error) {
-                }
+    public Completion visitWhileStmt(Stmt.While stmt) {
+        while (test(stmt.condition)) {
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitForStmt(Stmt.For stmt) {
+        if (stmt.isCounted) {
+            int slot = ((Expr.Variable)((Expr.Binary)stmt.condition).left).slot;
+            Object start = environment.get(slot);
+            if (start instanceof Double) {
+                return countedLoop(stmt, slot, (double)start);
             }
-        } catch (BreakException error) {
         }
-        return null;
+
+        while (test(stmt.condition)) {
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+            if (stmt.increment != null) evaluate(stmt.increment);
+        }
+        return Completion.NORMAL;
+    }
+
+    // Runs `for (...; i < limit; i = i + step)` with the counter in a
+    // double instead of evaluating the condition and increment nodes. The
+    // body can't assign the counter, so the copy in its slot, which the
+    // body reads, is only written after each step.
+    private Completion countedLoop(Stmt.For stmt, int slot, double counter) {
+        Expr.Binary condition = (Expr.Binary)stmt.condition;
+        boolean isInclusive = condition.operator.type == TokenType.LESS_EQUAL;
+        Expr.Binary sum = (Expr.Binary)((Expr.Assign)stmt.increment).value;
+        double step = (double)((Expr.Literal)sum.right).value;
+
+        for (;;) {
+            boolean isInRange;
+            try {
+                double limit = evaluateNumber(condition.right);
+                isInRange = isInclusive ? counter <= limit : counter < limit;
+            } catch (UnexpectedResult result) {
+                // fails the way the comparison would
+                isInRange = isTruthy(
+                        binary(condition.operator, counter, result.value));
+            }
+            if (!isInRange) break;
+
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+            counter += step;
+            environment.define(slot, counter);
+        }
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
-        } else {
-            globals.assign(expr.name, value);
+        switch (expr.access) {
+            case LOCAL:
+                environment.define(expr.slot, value);
+                break;
+            case LOCAL_CELL:
+                environment.getCell(expr.slot).value = value;
+                break;
+            case UPVALUE_CELL:
+                environment.getUpvalueCell(expr.slot).value = value;
+                break;
+            default:
+                // upvalues that are assigned are always cells
+                return assignGlobal(expr.global, expr.name, value);
+        }
+        return value;
+    }
+
+    static Object assignGlobal(Cell global, Token name, Object value) {
+        if (global.value == undefined) {
+            throw new RuntimeError(name,
+                    "Undefined variable '" + name.lexeme + "'.");
         }
+        global.value = value;
         return value;
     }
 
@@ -304,9 +468,145 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        if (expr.isLongChain) return evaluateChain(expr);
+        switch (expr.specialization) {
+            case NUMBER_ADD:
+            case NUMBER_SUBTRACT:
+            case NUMBER_MULTIPLY:
+            case NUMBER_DIVIDE:
+                try {
+                    return arithmetic(expr);
+                } catch (UnexpectedResult result) {
+                    return result.value;
+                }
+            case NUMBER_GREATER:
+            case NUMBER_GREATER_EQUAL:
+            case NUMBER_LESS:
+            case NUMBER_LESS_EQUAL:
+            case NUMBER_EQUAL:
+            case NUMBER_NOT_EQUAL:
+                return comparison(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        switch (expr.specialization) {
+            case STRING_ADD:
+                if (left instanceof String && right instanceof String) {
+                    return (String)left + (String)right;
+                }
+                break;
+            case UNINITIALIZED:
+                expr.specialization = Specialization.forBinary(
+                        expr.operator.type, left, right);
+                return binary(expr.operator, left, right);
+            default:
+                return binary(expr.operator, left, right);
+        }
+        return deoptimize(expr, left, right);
+    }
+
+    // Evaluates an expression that type feedback says yields a number
+    // without boxing it, so chains of arithmetic only allocate a Double
+    // for the final result. If the value turns out not to be a number,
+    // it's handed back boxed in an UnexpectedResult instead.
+    private double evaluateNumber(Expr expr) throws UnexpectedResult {
+        if (expr instanceof Expr.Binary && !((Expr.Binary)expr).isLongChain) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            switch (binary.specialization) {
+                case NUMBER_ADD:
+                case NUMBER_SUBTRACT:
+                case NUMBER_MULTIPLY:
+                case NUMBER_DIVIDE:
+                    return arithmetic(binary);
+            }
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            if (unary.specialization == Specialization.NUMBER_NEGATE) {
+                return negate(unary);
+            }
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateNumber(((Expr.Grouping)expr).expression);
+        } else if (expr instanceof Expr.FusedBinary) {
+            Expr.FusedBinary fused = (Expr.FusedBinary)expr;
+            TokenType operator = fused.original.operator.type;
+            Object left = environment.get(fused.slot);
+            if (left instanceof Double && !isComparison(operator)) {
+                return arithmetic(operator, (double)left, fused.constant);
+            }
+        }
+
+        Object value = evaluate(expr);
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResult(value);
+    }
+
+    private double arithmetic(Expr.Binary expr) throws UnexpectedResult {
+        double left;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedResult result) {
+            throw new UnexpectedResult(
+                    deoptimize(expr, result.value, evaluate(expr.right)));
+        }
+        double right;
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedResult result) {
+            throw new UnexpectedResult(deoptimize(expr, left, result.value));
+        }
+
+        switch (expr.specialization) {
+            case NUMBER_ADD: return left + right;
+            case NUMBER_SUBTRACT: return left - right;
+            case NUMBER_MULTIPLY: return left * right;
+            case NUMBER_DIVIDE: return left / right;
+        }
+        // a recursive call deoptimized the node while its operands ran
+        Object value = binary(expr.operator, left, right);
+        if (value instanceof Double) return (double)value;
+        throw new UnexpectedResult(value);
+    }
+
+    private Object comparison(Expr.Binary expr) {
+        double left;
+        try {
+            left = evaluateNumber(expr.left);
+        } catch (UnexpectedResult result) {
+            return deoptimize(expr, result.value, evaluate(expr.right));
+        }
+        double right;
+        try {
+            right = evaluateNumber(expr.right);
+        } catch (UnexpectedResult result) {
+            return deoptimize(expr, left, result.value);
+        }
+
+        switch (expr.specialization) {
+            case NUMBER_GREATER: return left > right;
+            case NUMBER_GREATER_EQUAL: return left >= right;
+            case NUMBER_LESS: return left < right;
+            case NUMBER_LESS_EQUAL: return left <= right;
+            // the same test Double.equals makes
+            case NUMBER_EQUAL:
+                return Double.doubleToLongBits(left)
+                    == Double.doubleToLongBits(right);
+            case NUMBER_NOT_EQUAL:
+                return Double.doubleToLongBits(left)
+                    != Double.doubleToLongBits(right);
+        }
+        return binary(expr.operator, left, right);
+    }
+
+    // the operands didn't match the node's specialization, so it falls
+    // back to the generic node for good
+    private Object deoptimize(Expr.Binary expr, Object left, Object right) {
+        expr.specialization = Specialization.GENERIC;
+        return binary(expr.operator, left, right);
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left > (double)right;
@@ -314,7 +614,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof String && right instanceof String) {
                     return stringCompare(left, right) > 0;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case GREATER_EQUAL:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left >= (double)right;
@@ -322,7 +622,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof String && right instanceof String) {
                     return stringCompare(left, right) >= 0;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case LESS:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left < (double)right;
@@ -330,7 +630,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof String && right instanceof String) {
                     return stringCompare(left, right) < 0;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case LESS_EQUAL:
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left <= (double)right;
@@ -338,13 +638,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof String && right instanceof String) {
                     return stringCompare(left, right) <= 0;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
@@ -353,68 +653,387 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof String && right instanceof String) {
                     return (String)left + (String)right;
                 }
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double)left * (double)right;
         }
         // Unreachable.
         return null;
     }
 
+    @Override
+    public Object visitFusedBinaryExpr(Expr.FusedBinary expr) {
+        TokenType operator = expr.original.operator.type;
+        Object left = environment.get(expr.slot);
+        if (!(left instanceof Double)) return unfused(expr, left);
+        if (isComparison(operator)) {
+            return compare(operator, (double)left, expr.constant);
+        }
+        return arithmetic(operator, (double)left, expr.constant);
+    }
+
+    // what the nodes a fused node replaced would have done with a left
+    // operand that isn't a number, errors included
+    private static Object unfused(Expr.FusedBinary expr, Object left) {
+        Token name = ((Expr.Variable)expr.original.left).name;
+        return binary(expr.original.operator, checkInitialized(left, name),
+                expr.constant);
+    }
+
+    // Decides a branch. A condition comparing a local with a number, the
+    // most common kind, is tested without boxing its result.
+    private boolean test(Expr condition) {
+        if (condition instanceof Expr.FusedBinary) {
+            Expr.FusedBinary fused = (Expr.FusedBinary)condition;
+            TokenType operator = fused.original.operator.type;
+            Object left = environment.get(fused.slot);
+            if (left instanceof Double && isComparison(operator)) {
+                return compare(operator, (double)left, fused.constant);
+            }
+        }
+        return isTruthy(evaluate(condition));
+    }
+
+    private static boolean isComparison(TokenType operator) {
+        switch (operator) {
+            case PLUS:
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return false;
+        }
+        return true;
+    }
+
+    private static double arithmetic(TokenType operator,
+            double left, double right) {
+        switch (operator) {
+            case PLUS: return left + right;
+            case MINUS: return left - right;
+            case STAR: return left * right;
+            default: return left / right;
+        }
+    }
+
+    private static boolean compare(TokenType operator,
+            double left, double right) {
+        switch (operator) {
+            case GREATER: return left > right;
+            case GREATER_EQUAL: return left >= right;
+            case LESS: return left < right;
+            case LESS_EQUAL: return left <= right;
+            // the same test Double.equals makes
+            case EQUAL_EQUAL:
+                return Double.doubleToLongBits(left)
+                    == Double.doubleToLongBits(right);
+            default:
+                return Double.doubleToLongBits(left)
+                    != Double.doubleToLongBits(right);
+        }
+    }
+
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        // obj.method(...) and super.method(...) pass the receiver straight
+        // to the method instead of binding it first
+        Object callee;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            if (object instanceof LoxInstance) {
+                LoxInstance instance = (LoxInstance)object;
+                int entry = instance.lookUp(get.cache);
+                LoxFunction method = get.cache.methods[entry];
+                if (method != null && !method.isGetter) {
+                    return callMethod(method, instance, expr);
+                }
+                callee = getProperty(instance, get.cache, entry);
+            } else {
+                callee = getProperty(object, get.cache);
+            }
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            return callMethod(superMethod(superExpr), superReceiver(superExpr),
+                    expr);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+
+        // calls with up to three arguments keep them in Java locals
+        // instead of collecting them into an array
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return call0(callee, expr.paren);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return call1(callee, a, expr.paren);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return call2(callee, a, b, expr.paren);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return call3(callee, a, b, c, expr.paren);
+            }
+        }
+        return call(callee, evaluateArguments(expr), expr.paren);
+    }
+
+    private Object tailCall(Expr.Call expr) {
+        Object callee;
+        LoxInstance receiver = null;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get)expr.callee;
+            Object object = evaluate(get.object);
+            if (object instanceof LoxInstance) {
+                LoxInstance instance = (LoxInstance)object;
+                int entry = instance.lookUp(get.cache);
+                LoxFunction method = get.cache.methods[entry];
+                if (method != null && !method.isGetter) {
+                    callee = method;
+                    receiver = instance;
+                } else {
+                    callee = getProperty(instance, get.cache, entry);
+                }
+            } else {
+                callee = getProperty(object, get.cache);
+            }
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super)expr.callee;
+            callee = superMethod(superExpr);
+            receiver = superReceiver(superExpr);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+        return tailCall(callee, receiver, evaluateArguments(expr),
+                expr.paren);
+    }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+    Object tailCall(Object callee, Object[] arguments, Token paren) {
+        return tailCall(callee, null, arguments, paren);
+    }
+
+    // Functions and lambdas called from a return statement don't run
+    // here. They are left pending for completeTailCalls, which runs them
+    // once the calling function's Java frames have unwound, so tail
+    // recursion doesn't grow the Java stack. Anything else is called
+    // right away.
+    private Object tailCall(Object callee, LoxInstance receiver,
+            Object[] arguments, Token paren) {
+        LoxCallable function = checkCallable(callee, arguments.length, paren);
+        if (function instanceof LoxFunction) {
+            if (receiver == null) receiver = ((LoxFunction)function).receiver;
+        } else if (!(function instanceof LoxLambda)) {
+            try {
+                return function.call(this, arguments);
+            } catch (RuntimeErrorInFunction error) {
+                throw new RuntimeError(paren, error.message);
+            }
+        }
+        pendingCall.callee = function;
+        pendingCall.receiver = receiver;
+        pendingCall.arguments = arguments;
+        return pendingCall;
+    }
+
+    // The trampoline: runs the pending tail calls that value stands for,
+    // one after another in this Java frame, and returns the value of the
+    // last one.
+    Object completeTailCalls(Object value) {
+        while (value == pendingCall) {
+            LoxCallable callee = pendingCall.callee;
+            LoxInstance receiver = pendingCall.receiver;
+            Object[] arguments = pendingCall.arguments;
+            pendingCall.callee = null;
+            pendingCall.receiver = null;
+            pendingCall.arguments = null;
+            if (callee instanceof LoxFunction) {
+                value = ((LoxFunction)callee).enter(this, receiver, arguments);
+            } else {
+                value = ((LoxLambda)callee).enter(this, arguments);
+            }
+        }
+        return value;
+    }
+
+    private Object[] evaluateArguments(Expr.Call expr) {
+        Object[] arguments = new Object[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = evaluate(expr.arguments.get(i));
         }
+        return arguments;
+    }
 
+    private static LoxCallable checkCallable(Object callee, int count,
+            Token paren) {
         if (!(callee instanceof LoxCallable)) {
-            throw new RuntimeError(expr.paren,
+            throw new RuntimeError(paren,
                     "Can only call functions and classes.");
         }
         LoxCallable function = (LoxCallable)callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren,
+        checkArity(function, count, paren);
+        return function;
+    }
+
+    private static void checkArity(LoxCallable function, int count,
+            Token paren) {
+        if (count != function.arity()) {
+            throw new RuntimeError(paren,
                     String.format("Expected %d arguments but got %d.",
                         function.arity(),
-                        arguments.size()));
+                        count));
         }
+    }
+
+    Object call0(Object callee, Token paren) {
+        LoxCallable function = checkCallable(callee, 0, paren);
+        try {
+            return function.call0(this);
+        } catch (RuntimeErrorInFunction error) {
+            throw new RuntimeError(paren, error.message);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    Object call1(Object callee, Object a, Token paren) {
+        LoxCallable function = checkCallable(callee, 1, paren);
+        try {
+            return function.call1(this, a);
+        } catch (RuntimeErrorInFunction error) {
+            throw new RuntimeError(paren, error.message);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    Object call2(Object callee, Object a, Object b, Token paren) {
+        LoxCallable function = checkCallable(callee, 2, paren);
+        try {
+            return function.call2(this, a, b);
+        } catch (RuntimeErrorInFunction error) {
+            throw new RuntimeError(paren, error.message);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    Object call3(Object callee, Object a, Object b, Object c, Token paren) {
+        LoxCallable function = checkCallable(callee, 3, paren);
+        try {
+            return function.call3(this, a, b, c);
+        } catch (RuntimeErrorInFunction error) {
+            throw new RuntimeError(paren, error.message);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    Object call(Object callee, Object[] arguments, Token paren) {
+        LoxCallable function = checkCallable(callee, arguments.length, paren);
         try {
             return function.call(this, arguments);
+        } catch (RuntimeErrorInFunction error) {
+            throw new RuntimeError(paren, error.message);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(paren);
+        }
+    }
+
+    private Object callMethod(LoxFunction method, LoxInstance receiver,
+            Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        Object result;
+        try {
+            switch (arguments.size()) {
+                case 0:
+                    checkArity(method, 0, expr.paren);
+                    result = method.call0(this, receiver);
+                    break;
+                case 1: {
+                    Object a = evaluate(arguments.get(0));
+                    checkArity(method, 1, expr.paren);
+                    result = method.call1(this, receiver, a);
+                    break;
+                }
+                case 2: {
+                    Object a = evaluate(arguments.get(0));
+                    Object b = evaluate(arguments.get(1));
+                    checkArity(method, 2, expr.paren);
+                    result = method.call2(this, receiver, a, b);
+                    break;
+                }
+                case 3: {
+                    Object a = evaluate(arguments.get(0));
+                    Object b = evaluate(arguments.get(1));
+                    Object c = evaluate(arguments.get(2));
+                    checkArity(method, 3, expr.paren);
+                    result = method.call3(this, receiver, a, b, c);
+                    break;
+                }
+                default: {
+                    Object[] values = evaluateArguments(expr);
+                    checkArity(method, values.length, expr.paren);
+                    result = method.call(this, receiver, values);
+                }
+            }
         } catch (RuntimeErrorInFunction error) {
             throw new RuntimeError(expr.paren, error.message);
+        } catch (StackOverflowError error) {
+            throw stackOverflow(expr.paren);
         }
+        return result;
+    }
+
+    // Each Lox call nests a few Java calls, so deep recursion runs out of
+    // Java stack long before the VM's --max-frames limit. It is reported
+    // as the same runtime error, at the innermost call that has enough
+    // stack left to build it.
+    private static RuntimeError stackOverflow(Token paren) {
+        return new RuntimeError(paren, "Stack overflow.");
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(evaluate(expr.object), expr.cache);
+    }
+
+    Object getProperty(Object object, InlineCache cache) {
         if (object instanceof LoxInstance) {
-            Object value = ((LoxInstance)object).get(expr.name);
-            if (value instanceof LoxFunction) {
-                LoxFunction function = (LoxFunction)value;
-                if (function.isGetter) {
-                    try {
-                        value = function.call(this, new ArrayList<Object>());
-                    } catch (RuntimeErrorInFunction error) {
-                        throw new RuntimeError(expr.name, error.message);
-                    }
-                }
-            }
-            return value;
+            LoxInstance instance = (LoxInstance)object;
+            return getProperty(instance, cache, instance.lookUp(cache));
         } else if (object instanceof LoxClass) {
-            return ((LoxClass)object).findStaticMethod(expr.name.lexeme);
+            return ((LoxClass)object).findStaticMethod(cache.name.symbol);
         }
-        throw new RuntimeError(expr.name,
+        throw new RuntimeError(cache.name,
                 "Only instances have properties.");
     }
 
+    private Object getProperty(LoxInstance instance, InlineCache cache,
+            int entry) {
+        LoxFunction method = cache.methods[entry];
+        if (method == null) {
+            return instance.getField(cache.indexes[entry]);
+        } else if (!method.isGetter) {
+            // the method escapes as a value, so it has to be bound now
+            return method.bind(instance);
+        }
+        try {
+            return method.call0(this, instance);
+        } catch (RuntimeErrorInFunction error) {
+            throw new RuntimeError(cache.name, error.message);
+        }
+    }
+
     @Override
     public Object visitGroupingExpr(Expr.Grouping expr) {
         return evaluate(expr.expression);
@@ -422,7 +1041,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitLambdaExpr(Expr.Lambda expr) {
-        return new LoxLambda(expr, environment);
+        return new LoxLambda(expr, capture(expr.captures));
     }
 
     @Override
@@ -432,6 +1051,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitLogicalExpr(Expr.Logical expr) {
+        if (expr.isLongChain) return evaluateChain(expr);
         Object left = evaluate(expr.left);
         if (expr.operator.type == TokenType.OR) {
             if (isTruthy(left)) return left;
@@ -441,6 +1061,35 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return evaluate(expr.right);
     }
 
+    // A chain like a + b + c + ... leans left as deep as it is long, so
+    // recursing down it can overflow the stack. Long chains are walked the
+    // way the Resolver walks them instead, applying each operator on the
+    // way back up. They skip the number specializations.
+    private Object evaluateChain(Expr expr) {
+        List<Expr> spine = new ArrayList<>();
+        while (expr instanceof Expr.Binary || expr instanceof Expr.Logical) {
+            spine.add(expr);
+            expr = expr instanceof Expr.Binary
+                ? ((Expr.Binary)expr).left : ((Expr.Logical)expr).left;
+        }
+
+        Object value = evaluate(expr);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            Expr operator = spine.get(i);
+            if (operator instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)operator;
+                value = binary(binary.operator, value, evaluate(binary.right));
+            } else {
+                Expr.Logical logical = (Expr.Logical)operator;
+                boolean isTruthy = isTruthy(value);
+                if (logical.operator.type == TokenType.OR ? !isTruthy : isTruthy) {
+                    value = evaluate(logical.right);
+                }
+            }
+        }
+        return value;
+    }
+
     @Override
     public Object visitSetExpr(Expr.Set expr) {
         Object object = evaluate(expr.object);
@@ -448,33 +1097,78 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             throw new RuntimeError(expr.name, "Only instances have fields.");
         }
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        ((LoxInstance)object).set(expr.cache, value);
         return value;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(
-                distance, "super");
-        LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        return superMethod(expr).bind(superReceiver(expr));
+    }
+
+    private LoxFunction superMethod(Expr.Super expr) {
+        return findSuperMethod(
+                lookUpVariable(expr.keyword, expr.access, expr.slot),
+                expr.method);
+    }
+
+    private LoxInstance superReceiver(Expr.Super expr) {
+        return (LoxInstance)lookUpVariable(expr.keyword, expr.thisAccess,
+                expr.thisSlot);
+    }
+
+    static LoxFunction findSuperMethod(Object superclass, Token name) {
+        LoxFunction method = ((LoxClass)superclass).findMethod(name.symbol);
         // how about getters and staticmethods?
         if (method == null) {
-            throw new RuntimeError(expr.method,
-                    "Undefined property '" + expr.method.lexeme + "'.");
+            throw new RuntimeError(name,
+                    "Undefined property '" + name.lexeme + "'.");
         }
-        return method.bind(object);
+        return method;
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.specialization == Specialization.NUMBER_NEGATE) {
+            try {
+                return negate(expr);
+            } catch (UnexpectedResult result) {
+                return result.value;
+            }
+        }
+
         Object right = evaluate(expr.right);
-        switch (expr.operator.type) {
+        switch (expr.specialization) {
+            case BOOLEAN_NOT:
+                if (right instanceof Boolean) return !(boolean)right;
+                break;
+            case UNINITIALIZED:
+                expr.specialization = Specialization.forUnary(
+                        expr.operator.type, right);
+                return unary(expr.operator, right);
+            default:
+                return unary(expr.operator, right);
+        }
+        // the type guard failed, so fall back to the generic node
+        expr.specialization = Specialization.GENERIC;
+        return unary(expr.operator, right);
+    }
+
+    private double negate(Expr.Unary expr) throws UnexpectedResult {
+        try {
+            return -evaluateNumber(expr.right);
+        } catch (UnexpectedResult result) {
+            expr.specialization = Specialization.GENERIC;
+            throw new UnexpectedResult(unary(expr.operator, result.value));
+        }
+    }
+
+    static Object unary(Token operator, Object right) {
+        switch (operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                checkNumberOperand(operator, right);
                 return -(double)right;
         }
         // Unreachable.
@@ -483,18 +1177,50 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        if (expr.access == Access.GLOBAL) {
+            return lookUpGlobal(expr.global, expr.name);
+        }
+        return lookUpVariable(expr.name, expr.access, expr.slot);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        Object value = null;
-        if (distance != null) {
-            value = environment.getAt(distance, name.lexeme);
-        } else {
-            value = globals.get(name);
+    // this and super are never globals, so only visitVariableExpr has to
+    // handle those
+    private Object lookUpVariable(Token name, Access access, int slot) {
+        switch (access) {
+            case LOCAL:
+                return checkInitialized(environment.get(slot), name);
+            case LOCAL_CELL:
+                return checkInitialized(environment.getCell(slot).value, name);
+            case UPVALUE:
+                return checkInitialized(environment.upvalues[slot], name);
+            default: // UPVALUE_CELL
+                return checkInitialized(
+                        environment.getUpvalueCell(slot).value, name);
+        }
+    }
+
+    static Object lookUpGlobal(Cell global, Token name) {
+        Object value = global.value;
+        if (value == undefined) {
+            throw new RuntimeError(name,
+                    "Undefined variable '" + name.lexeme + "'.");
         }
+        return checkInitialized(value, name);
+    }
 
+    Cell globalCell(Symbol name) {
+        return globals.computeIfAbsent(name, key -> new Cell(undefined));
+    }
+
+    private void defineGlobal(String name, Object value) {
+        defineGlobal(Symbol.intern(name), value);
+    }
+
+    private void defineGlobal(Symbol name, Object value) {
+        globalCell(name).value = value;
+    }
+
+    static Object checkInitialized(Object value, Token name) {
         if (value == uninitialized) {
             throw new RuntimeError(name,
                     "Uninitialized variable '" + name.lexeme + "'.");
@@ -502,29 +1228,50 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return value;
     }
 
-    private boolean isTruthy(Object object) {
+    // what a closure created in the current frame captures
+    private Object[] capture(Capture[] captures) {
+        if (environment == null) return Environment.NO_UPVALUES;
+        return environment.capture(captures);
+    }
+
+    // puts a new cell in a local slot, one per run of the declaration
+    private Cell declareCell(int slot) {
+        Cell cell = new Cell(null);
+        environment.define(slot, cell);
+        return cell;
+    }
+
+    private void define(int slot, Token name, Object value) {
+        if (slot == Resolver.GLOBAL) {
+            defineGlobal(name.symbol, value);
+        } else {
+            environment.define(slot, value);
+        }
+    }
+
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
         return a.equals(b);
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
         throw new RuntimeError(operator, "Operands must be a number");
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -537,11 +1284,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
-    private int stringCompare(Object left, Object right) {
+    private static int stringCompare(Object left, Object right) {
         return ((String)left).compareTo((String)right);
     }
-
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
-    }
 }
@@ -0,0 +1,44 @@
+package com.craftinginterpreters.lox;
+
+// Entry points of a function body that JitCompiler turned into a JVM
+// class. The class implements the one that matches the function's arity,
+// and the defaults adapt the others to it.
+interface JitCode {
+    default Object invoke0(Interpreter interpreter, Object[] upvalues,
+            LoxInstance receiver) {
+        return invoke(interpreter, upvalues, receiver, new Object[0]);
+    }
+
+    default Object invoke1(Interpreter interpreter, Object[] upvalues,
+            LoxInstance receiver, Object a) {
+        return invoke(interpreter, upvalues, receiver, new Object[] {a});
+    }
+
+    default Object invoke2(Interpreter interpreter, Object[] upvalues,
+            LoxInstance receiver, Object a, Object b) {
+        return invoke(interpreter, upvalues, receiver, new Object[] {a, b});
+    }
+
+    default Object invoke3(Interpreter interpreter, Object[] upvalues,
+            LoxInstance receiver, Object a, Object b, Object c) {
+        return invoke(interpreter, upvalues, receiver,
+                new Object[] {a, b, c});
+    }
+
+    default Object invoke(Interpreter interpreter, Object[] upvalues,
+            LoxInstance receiver, Object[] arguments) {
+        switch (arguments.length) {
+            case 0: return invoke0(interpreter, upvalues, receiver);
+            case 1:
+                return invoke1(interpreter, upvalues, receiver, arguments[0]);
+            case 2:
+                return invoke2(interpreter, upvalues, receiver, arguments[0],
+                        arguments[1]);
+            case 3:
+                return invoke3(interpreter, upvalues, receiver, arguments[0],
+                        arguments[1], arguments[2]);
+        }
+        throw new IllegalArgumentException(
+                "No entry point for " + arguments.length + " arguments.");
+    }
+}
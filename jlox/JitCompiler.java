@@ -0,0 +1,943 @@
+package com.craftinginterpreters.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Turns the body of a hot Stmt.Function into a hidden JVM class, so HotSpot
+// compiles Lox code like any other Java method. Only bodies that never
+// capture their frame (no nested functions, lambdas or classes) are
+// compiled, which lets their locals live in JVM local variables; anything
+// else keeps running in the Interpreter.
+//
+// The class file is version 49 so it needs no StackMapTable; the verifier
+// infers the frame types itself.
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // calls before a function gets compiled, 0 turns the JIT off
+    static int threshold = 100;
+
+    private static final String PACKAGE = "com/craftinginterpreters/lox/";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String TOKEN = "L" + PACKAGE + "Token;";
+    private static final String CACHE = "L" + PACKAGE + "InlineCache;";
+    private static final String CELL = "L" + PACKAGE + "Cell;";
+    private static final String INVOKE_PREFIX = "(L" + PACKAGE
+        + "Interpreter;[" + OBJECT + "L" + PACKAGE
+        + "LoxInstance;";
+    // arities with their own invokeN entry point in JitCode and callN
+    // method in Interpreter
+    private static final int MAX_FIXED_ARITY = 3;
+
+    // JVM local variables taken by this, interpreter, upvalues and
+    // receiver, followed by either the arguments themselves or the array
+    // holding them
+    private static final int INTERPRETER = 1;
+    private static final int UPVALUES = 2;
+    private static final int RECEIVER = 3;
+    private static final int ARGUMENTS = 4;
+    private static final int MAX_LOCALS = 256;
+    private static final int MAX_CODE = 8000;
+
+    private static final int ACONST_NULL = 0x01;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int AALOAD = 0x32;
+    private static final int ASTORE = 0x3a;
+    private static final int AASTORE = 0x53;
+    private static final int ASTORE_0 = 0x4b;
+    private static final int POP = 0x57;
+    private static final int DUP = 0x59;
+    private static final int DUP_X2 = 0x5b;
+    private static final int IFEQ = 0x99;
+    private static final int IFNE = 0x9a;
+    private static final int GOTO = 0xa7;
+    private static final int ARETURN = 0xb0;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+    private static final int ANEWARRAY = 0xbd;
+    private static final int CHECKCAST = 0xc0;
+
+    // thrown when the function uses something the JIT doesn't handle
+    private static class Unsupported extends RuntimeException {
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static class Local {
+        final int index;
+        // variables declared without an initializer have to be checked
+        // before they're read
+        final boolean isInitialized;
+
+        Local(int index, boolean isInitialized) {
+            this.index = index;
+            this.isInitialized = isInitialized;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int start;
+        final List<Integer> breakJumps = new ArrayList<>();
+
+        Loop(Loop enclosing, int start) {
+            this.enclosing = enclosing;
+            this.start = start;
+        }
+    }
+
+    private final String className;
+    private final int arity;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolEntries = new HashMap<>();
+    private int poolCount = 1;
+
+    // values the compiled code reads from its k field
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndexes = new HashMap<>();
+
+    private byte[] code = new byte[256];
+    private int length = 0;
+    private int stack = 0;
+    private int maxStack = 0;
+
+    // the JVM local holding each slot of the function's frame
+    private Local[] frame;
+    private int nextLocal;
+    private int maxLocals;
+    private Loop loop = null;
+
+    private JitCompiler(Stmt.Function function) {
+        this.className = PACKAGE + "LoxJit$" + function.name.lexeme;
+        this.arity = function.params.size();
+        this.nextLocal = ARGUMENTS
+            + (arity <= MAX_FIXED_ARITY ? arity : 1);
+        this.maxLocals = nextLocal;
+    }
+
+    // Returns null if the function can't be compiled.
+    static JitCode compile(Stmt.Function function) {
+        JitCompiler compiler = new JitCompiler(function);
+        byte[] bytes;
+        try {
+            bytes = compiler.compileFunction(function);
+        } catch (Unsupported error) {
+            return null;
+        }
+
+        try {
+            MethodHandles.Lookup lookup =
+                MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (JitCode)lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class, Object[].class))
+                .invoke(compiler.constants.toArray());
+        } catch (Throwable error) {
+            throw new IllegalStateException(
+                    "Failed to load compiled function.", error);
+        }
+    }
+
+    private byte[] compileFunction(Stmt.Function function) {
+        frame = new Local[function.frameSize];
+        int firstParam = 0;
+        if (function.isMethod) {
+            frame[0] = new Local(RECEIVER, true);
+            firstParam = 1;
+        }
+        int arity = function.params.size();
+        for (int i = 0; i < arity; i++) {
+            if (arity <= MAX_FIXED_ARITY) {
+                // the parameter already arrived in its own JVM local
+                frame[firstParam + i] = new Local(ARGUMENTS + i, true);
+                continue;
+            }
+            Local local = newLocal(true);
+            frame[firstParam + i] = local;
+            emitLoad(ARGUMENTS);
+            emitInt(i);
+            emit(AALOAD, -1);
+            emitStore(local.index);
+        }
+        compile(function.body);
+        emit(ACONST_NULL, 1);
+        emit(ARETURN, -1);
+
+        if (length > MAX_CODE) throw new Unsupported();
+        return classFile();
+    }
+
+    private void compile(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            statement.accept(this);
+        }
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        int firstLocal = nextLocal;
+        compile(stmt.statements);
+        nextLocal = firstLocal;
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emit(POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported();
+    }
+
+    // else-if chains are compiled in a loop, like the bytecode compiler
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        List<Integer> endJumps = new ArrayList<>();
+        Stmt next = stmt;
+        while (next instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If)next;
+            if (length > MAX_CODE) throw new Unsupported();
+            compileCondition(branch.condition);
+            int elseJump = emitJump(IFEQ);
+            branch.thenBranch.accept(this);
+            next = branch.elseBranch;
+            if (next == null) {
+                patchJump(elseJump);
+            } else {
+                endJumps.add(emitJump(GOTO));
+                patchJump(elseJump);
+            }
+        }
+        if (next != null) next.accept(this);
+        for (int jump : endJumps) patchJump(jump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitInvoke(INVOKESTATIC, PACKAGE + "JitRuntime", "print",
+                "(" + OBJECT + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            emit(ACONST_NULL, 1);
+        } else if (stmt.isTailCall) {
+            // returns the pending call for LoxFunction to complete
+            Expr.Call call = (Expr.Call)stmt.value;
+            emitLoad(INTERPRETER);
+            compile(call.callee);
+            emitArguments(call.arguments);
+            emitToken(call.paren);
+            emitInvoke(INVOKEVIRTUAL, PACKAGE + "Interpreter", "tailCall",
+                    "(" + OBJECT + "[" + OBJECT + TOKEN + ")" + OBJECT);
+        } else {
+            compile(stmt.value);
+        }
+        emit(ARETURN, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        // only closures, which aren't compiled, make a variable a cell
+        if (stmt.isCell) throw new Unsupported();
+        if (stmt.initializer == null) {
+            emitField(GETSTATIC, PACKAGE + "Interpreter", "uninitialized",
+                    OBJECT, 1);
+        } else {
+            compile(stmt.initializer);
+        }
+        Local local = newLocal(stmt.initializer != null);
+        frame[stmt.slot] = local;
+        emitStore(local.index);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        // the Resolver only allows break inside a loop of this function
+        loop.breakJumps.add(emitJump(GOTO));
+        return null;
+    }
+
+    @Override
+    public Void visitContinueStmt(Stmt.Continue stmt) {
+        emitLoop(GOTO, loop.start);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        // continue isn't allowed in a for loop, so nothing jumps to the
+        // increment
+        loop = new Loop(loop, length);
+        compileCondition(stmt.condition);
+        int exitJump = emitJump(IFEQ);
+        stmt.body.accept(this);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emit(POP, -1);
+        }
+        emitLoop(GOTO, loop.start);
+        patchJump(exitJump);
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop = new Loop(loop, length);
+        compileCondition(stmt.condition);
+        int exitJump = emitJump(IFEQ);
+        stmt.body.accept(this);
+        emitLoop(GOTO, loop.start);
+        patchJump(exitJump);
+        for (int jump : loop.breakJumps) {
+            patchJump(jump);
+        }
+        loop = loop.enclosing;
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        switch (expr.access) {
+            case GLOBAL:
+                emitGlobal(expr.global);
+                emitToken(expr.name);
+                compile(expr.value);
+                emitInvoke(INVOKESTATIC, PACKAGE + "Interpreter",
+                        "assignGlobal", "(" + CELL + TOKEN + OBJECT + ")"
+                        + OBJECT);
+                break;
+            case LOCAL:
+                compile(expr.value);
+                emit(DUP, 1);
+                emitStore(resolveLocal(expr.slot).index);
+                break;
+            case UPVALUE_CELL:
+                emitUpvalue(expr.slot);
+                compile(expr.value);
+                emitInvoke(INVOKESTATIC, PACKAGE + "JitRuntime", "assignCell",
+                        "(" + OBJECT + OBJECT + ")" + OBJECT);
+                break;
+            default:
+                throw new Unsupported();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compileCondition(expr.left);
+        int elseJump = emitJump(IFEQ);
+        compile(expr.middle);
+        int endJump = emitJump(GOTO);
+        stack--;
+        patchJump(elseJump);
+        compile(expr.right);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        operators(expr);
+        return null;
+    }
+
+    // Walks the left spine of an operator chain in a loop, like the
+    // bytecode compiler. Chains too long to fit are given up on early.
+    private void operators(Expr expr) {
+        List<Expr> spine = new ArrayList<>();
+        while (expr instanceof Expr.Binary || expr instanceof Expr.Logical) {
+            spine.add(expr);
+            expr = expr instanceof Expr.Binary
+                ? ((Expr.Binary)expr).left : ((Expr.Logical)expr).left;
+        }
+
+        compile(expr);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            if (length > MAX_CODE) throw new Unsupported();
+            Expr operator = spine.get(i);
+            if (operator instanceof Expr.Binary) {
+                binary((Expr.Binary)operator);
+            } else {
+                logical((Expr.Logical)operator);
+            }
+        }
+    }
+
+    private void binary(Expr.Binary expr) {
+        compile(expr.right);
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emitEquality("notEqual"); return;
+            case EQUAL_EQUAL: emitEquality("equal"); return;
+            case GREATER: emitOperator("greater", expr.operator); break;
+            case GREATER_EQUAL: emitOperator("greaterEqual", expr.operator); break;
+            case LESS: emitOperator("less", expr.operator); break;
+            case LESS_EQUAL: emitOperator("lessEqual", expr.operator); break;
+            case MINUS: emitOperator("subtract", expr.operator); break;
+            case PLUS: emitOperator("add", expr.operator); break;
+            case SLASH: emitOperator("divide", expr.operator); break;
+            case STAR: emitOperator("multiply", expr.operator); break;
+            default: throw new Unsupported();
+        }
+    }
+
+    @Override
+    public Void visitFusedBinaryExpr(Expr.FusedBinary expr) {
+        return visitBinaryExpr(expr.original);
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        emitLoad(INTERPRETER);
+        compile(expr.callee);
+        int count = expr.arguments.size();
+        if (count <= MAX_FIXED_ARITY) {
+            StringBuilder descriptor = new StringBuilder("(" + OBJECT);
+            for (Expr argument : expr.arguments) {
+                compile(argument);
+                descriptor.append(OBJECT);
+            }
+            emitToken(expr.paren);
+            descriptor.append(TOKEN + ")" + OBJECT);
+            emitInvoke(INVOKEVIRTUAL, PACKAGE + "Interpreter",
+                    "call" + count, descriptor.toString());
+            return null;
+        }
+
+        emitArguments(expr.arguments);
+        emitToken(expr.paren);
+        emitInvoke(INVOKEVIRTUAL, PACKAGE + "Interpreter", "call",
+                "(" + OBJECT + "[" + OBJECT + TOKEN + ")" + OBJECT);
+        return null;
+    }
+
+    // leaves an Object[] holding the argument values on the stack
+    private void emitArguments(List<Expr> arguments) {
+        emitInt(arguments.size());
+        emit(ANEWARRAY, 0);
+        emitShort(classRef("java/lang/Object"));
+        for (int i = 0; i < arguments.size(); i++) {
+            emit(DUP, 1);
+            emitInt(i);
+            compile(arguments.get(i));
+            emit(AASTORE, -3);
+        }
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        emitLoad(INTERPRETER);
+        compile(expr.object);
+        emitCache(expr.cache);
+        emitInvoke(INVOKEVIRTUAL, PACKAGE + "Interpreter", "getProperty",
+                "(" + OBJECT + CACHE + ")" + OBJECT);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLambdaExpr(Expr.Lambda expr) {
+        throw new Unsupported();
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(ACONST_NULL, 1);
+        } else if (expr.value instanceof Boolean) {
+            emitField(GETSTATIC, "java/lang/Boolean",
+                    (boolean)expr.value ? "TRUE" : "FALSE",
+                    "Ljava/lang/Boolean;", 1);
+        } else {
+            emitConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        operators(expr);
+        return null;
+    }
+
+    private void logical(Expr.Logical expr) {
+        emit(DUP, 1);
+        emitInvoke(INVOKESTATIC, PACKAGE + "Interpreter", "isTruthy",
+                "(" + OBJECT + ")Z");
+        int endJump = emitJump(expr.operator.type == TokenType.OR ? IFNE : IFEQ);
+        emit(POP, -1);
+        compile(expr.right);
+        patchJump(endJump);
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        emitToken(expr.name);
+        emitInvoke(INVOKESTATIC, PACKAGE + "JitRuntime", "checkInstance",
+                "(" + OBJECT + TOKEN + ")L" + PACKAGE + "LoxInstance;");
+        emitCache(expr.cache);
+        compile(expr.value);
+        emit(DUP_X2, 1);
+        emitInvoke(INVOKEVIRTUAL, PACKAGE + "LoxInstance", "set",
+                "(" + CACHE + OBJECT + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        // super is never declared inside the function itself
+        if (expr.access != Access.UPVALUE) throw new Unsupported();
+        emitUpvalue(expr.slot);
+        emitToken(expr.method);
+        emitInvoke(INVOKESTATIC, PACKAGE + "Interpreter", "findSuperMethod",
+                "(" + OBJECT + TOKEN + ")L" + PACKAGE + "LoxFunction;");
+        emitThis(expr.thisAccess, expr.thisSlot);
+        emit(CHECKCAST, 0);
+        emitShort(classRef(PACKAGE + "LoxInstance"));
+        emitInvoke(INVOKEVIRTUAL, PACKAGE + "LoxFunction", "bind",
+                "(L" + PACKAGE + "LoxInstance;)L" + PACKAGE + "LoxFunction;");
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        emitThis(expr.access, expr.slot);
+        return null;
+    }
+
+    // this is slot 0 of a method, or an upvalue in a lambda inside one
+    private void emitThis(Access access, int slot) {
+        if (access == Access.LOCAL) {
+            emitLoad(resolveLocal(slot).index);
+        } else if (access == Access.UPVALUE) {
+            emitUpvalue(slot);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        switch (expr.operator.type) {
+            case BANG:
+                emitInvoke(INVOKESTATIC, PACKAGE + "JitRuntime", "not",
+                        "(" + OBJECT + ")" + OBJECT);
+                break;
+            case MINUS:
+                emitToken(expr.operator);
+                emitInvoke(INVOKESTATIC, PACKAGE + "JitRuntime", "negate",
+                        "(" + OBJECT + TOKEN + ")" + OBJECT);
+                break;
+            default:
+                throw new Unsupported();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        boolean isInitialized;
+        switch (expr.access) {
+            case GLOBAL:
+                emitGlobal(expr.global);
+                emitToken(expr.name);
+                emitInvoke(INVOKESTATIC, PACKAGE + "Interpreter",
+                        "lookUpGlobal", "(" + CELL + TOKEN + ")" + OBJECT);
+                return null;
+            case LOCAL: {
+                Local local = resolveLocal(expr.slot);
+                emitLoad(local.index);
+                isInitialized = local.isInitialized;
+                break;
+            }
+            case UPVALUE:
+                emitUpvalue(expr.slot);
+                isInitialized = false;
+                break;
+            case UPVALUE_CELL:
+                emitUpvalue(expr.slot);
+                emit(CHECKCAST, 0);
+                emitShort(classRef(PACKAGE + "Cell"));
+                emitField(GETFIELD, PACKAGE + "Cell", "value", OBJECT, 0);
+                isInitialized = false;
+                break;
+            default:
+                throw new Unsupported();
+        }
+
+        if (!isInitialized) {
+            emitToken(expr.name);
+            emitInvoke(INVOKESTATIC, PACKAGE + "Interpreter",
+                    "checkInitialized", "(" + OBJECT + TOKEN + ")" + OBJECT);
+        }
+        return null;
+    }
+
+    private void emitUpvalue(int index) {
+        emitLoad(UPVALUES);
+        emitInt(index);
+        emit(AALOAD, -1);
+    }
+
+    private Local resolveLocal(int slot) {
+        Local local = frame[slot];
+        if (local == null) throw new Unsupported();
+        return local;
+    }
+
+    private Local newLocal(boolean isInitialized) {
+        if (nextLocal == MAX_LOCALS) throw new Unsupported();
+        Local local = new Local(nextLocal++, isInitialized);
+        maxLocals = Math.max(maxLocals, nextLocal);
+        return local;
+    }
+
+    private void compileCondition(Expr condition) {
+        compile(condition);
+        emitInvoke(INVOKESTATIC, PACKAGE + "Interpreter", "isTruthy",
+                "(" + OBJECT + ")Z");
+    }
+
+    private void emitOperator(String name, Token operator) {
+        emitToken(operator);
+        emitInvoke(INVOKESTATIC, PACKAGE + "JitRuntime", name,
+                "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT);
+    }
+
+    private void emitEquality(String name) {
+        emitInvoke(INVOKESTATIC, PACKAGE + "JitRuntime", name,
+                "(" + OBJECT + OBJECT + ")" + OBJECT);
+    }
+
+    private void emitToken(Token token) {
+        emitConstant(token);
+        emit(CHECKCAST, 0);
+        emitShort(classRef(PACKAGE + "Token"));
+    }
+
+    private void emitGlobal(Cell global) {
+        emitConstant(global);
+        emit(CHECKCAST, 0);
+        emitShort(classRef(PACKAGE + "Cell"));
+    }
+
+    private void emitCache(InlineCache cache) {
+        emitConstant(cache);
+        emit(CHECKCAST, 0);
+        emitShort(classRef(PACKAGE + "InlineCache"));
+    }
+
+    private void emitConstant(Object value) {
+        Integer index = constantIndexes.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndexes.put(value, index);
+        }
+        emitLoad(0);
+        emitField(GETFIELD, className, "k", "[" + OBJECT, 0);
+        emitInt(index);
+        emit(AALOAD, -1);
+    }
+
+    private void emitLoad(int index) {
+        if (index < 4) {
+            emit(ALOAD_0 + index, 1);
+        } else {
+            emit(ALOAD, 1);
+            emitByte(index);
+        }
+    }
+
+    private void emitStore(int index) {
+        if (index < 4) {
+            emit(ASTORE_0 + index, -1);
+        } else {
+            emit(ASTORE, -1);
+            emitByte(index);
+        }
+    }
+
+    private void emitInt(int value) {
+        if (value >= -1 && value <= 5) {
+            emit(ICONST_0 + value, 1);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            emit(BIPUSH, 1);
+            emitByte(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            emit(SIPUSH, 1);
+            emitShort(value);
+        } else {
+            throw new Unsupported();
+        }
+    }
+
+    private void emitField(int opcode, String owner, String name,
+            String descriptor, int effect) {
+        emit(opcode, effect);
+        emitShort(memberRef(9, owner, name, descriptor));
+    }
+
+    private void emitInvoke(int opcode, String owner, String name,
+            String descriptor) {
+        // every argument here is a reference, an int or a boolean, so each
+        // one takes a single stack slot
+        int arguments = 0;
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            while (descriptor.charAt(i) == '[') i++;
+            if (descriptor.charAt(i) == 'L') {
+                i = descriptor.indexOf(';', i);
+            }
+            arguments++;
+        }
+        if (opcode != INVOKESTATIC) arguments++;
+        boolean isVoid = descriptor.endsWith(")V");
+
+        emit(opcode, (isVoid ? 0 : 1) - arguments);
+        if (opcode == INVOKEINTERFACE) {
+            emitShort(memberRef(11, owner, name, descriptor));
+            emitByte(arguments);
+            emitByte(0);
+        } else {
+            emitShort(memberRef(10, owner, name, descriptor));
+        }
+    }
+
+    private int emitJump(int opcode) {
+        emit(opcode, opcode == GOTO ? 0 : -1);
+        emitShort(0xffff);
+        return length - 3;
+    }
+
+    private void patchJump(int offset) {
+        int jump = length - offset;
+        if (jump > Short.MAX_VALUE) throw new Unsupported();
+        code[offset + 1] = (byte)(jump >> 8);
+        code[offset + 2] = (byte)jump;
+    }
+
+    private void emitLoop(int opcode, int start) {
+        int jump = start - length;
+        if (jump < Short.MIN_VALUE) throw new Unsupported();
+        emit(opcode, opcode == GOTO ? 0 : -1);
+        emitShort(jump);
+    }
+
+    private void emit(int opcode, int effect) {
+        emitByte(opcode);
+        stack += effect;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private void emitShort(int value) {
+        emitByte(value >> 8);
+        emitByte(value);
+    }
+
+    private void emitByte(int value) {
+        if (length == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        code[length++] = (byte)value;
+    }
+
+    private int utf8(String value) {
+        Integer index = poolEntries.get("U" + value);
+        if (index != null) return index;
+        try {
+            pool.writeByte(1);
+            pool.writeUTF(value);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        poolEntries.put("U" + value, poolCount);
+        return poolCount++;
+    }
+
+    private int classRef(String name) {
+        Integer index = poolEntries.get("C" + name);
+        if (index != null) return index;
+        int nameIndex = utf8(name);
+        try {
+            pool.writeByte(7);
+            pool.writeShort(nameIndex);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        poolEntries.put("C" + name, poolCount);
+        return poolCount++;
+    }
+
+    private int memberRef(int tag, String owner, String name,
+            String descriptor) {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = poolEntries.get(key);
+        if (index != null) return index;
+
+        int ownerIndex = classRef(owner);
+        int nameAndType = poolEntries.getOrDefault("N" + name + descriptor, 0);
+        if (nameAndType == 0) {
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            try {
+                pool.writeByte(12);
+                pool.writeShort(nameIndex);
+                pool.writeShort(descriptorIndex);
+            } catch (IOException error) {
+                throw new AssertionError(error);
+            }
+            nameAndType = poolCount++;
+            poolEntries.put("N" + name + descriptor, nameAndType);
+        }
+
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        poolEntries.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // the JitCode entry point for the function's arity
+    private String invokeDescriptor() {
+        StringBuilder descriptor = new StringBuilder(INVOKE_PREFIX);
+        if (arity <= MAX_FIXED_ARITY) {
+            for (int i = 0; i < arity; i++) descriptor.append(OBJECT);
+        } else {
+            descriptor.append("[" + OBJECT);
+        }
+        return descriptor.append(")" + OBJECT).toString();
+    }
+
+    private byte[] classFile() {
+        // the constructor only stores the constants array in k
+        byte[] constructor = {
+            (byte)ALOAD_0,
+            (byte)INVOKESPECIAL, 0, 0,
+            (byte)ALOAD_0,
+            (byte)(ALOAD_0 + 1),
+            (byte)PUTFIELD, 0, 0,
+            (byte)RETURN,
+        };
+        int objectInit = memberRef(10, "java/lang/Object", "<init>", "()V");
+        int field = memberRef(9, className, "k", "[" + OBJECT);
+        constructor[2] = (byte)(objectInit >> 8);
+        constructor[3] = (byte)objectInit;
+        constructor[7] = (byte)(field >> 8);
+        constructor[8] = (byte)field;
+
+        int thisClass = classRef(className);
+        int superClass = classRef("java/lang/Object");
+        int jitCode = classRef(PACKAGE + "JitCode");
+        int fieldName = utf8("k");
+        int fieldDescriptor = utf8("[" + OBJECT);
+        int initName = utf8("<init>");
+        int initDescriptor = utf8("([" + OBJECT + ")V");
+        int invokeName = utf8(arity <= MAX_FIXED_ARITY
+                ? "invoke" + arity : "invoke");
+        int invokeDescriptor = utf8(invokeDescriptor());
+        int codeAttribute = utf8("Code");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+
+            out.writeShort(0x0030); // final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(jitCode);
+
+            out.writeShort(1);
+            out.writeShort(0x0012); // private final
+            out.writeShort(fieldName);
+            out.writeShort(fieldDescriptor);
+            out.writeShort(0);
+
+            out.writeShort(2);
+            writeMethod(out, 0, initName, initDescriptor, codeAttribute,
+                    2, 2, constructor, constructor.length);
+            writeMethod(out, 0x0001, invokeName, invokeDescriptor,
+                    codeAttribute, maxStack, maxLocals, code, length);
+
+            out.writeShort(0);
+        } catch (IOException error) {
+            throw new AssertionError(error);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int access,
+            int name, int descriptor, int codeAttribute, int maxStack,
+            int maxLocals, byte[] code, int length) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeAttribute);
+        out.writeInt(12 + length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(length);
+        out.write(code, 0, length);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+}
@@ -0,0 +1,113 @@
+package com.craftinginterpreters.lox;
+
+// Operators called from compiled function bodies. Each one behaves exactly
+// like the matching case in Interpreter.visitBinaryExpr/visitUnaryExpr.
+final class JitRuntime {
+    private JitRuntime() {}
+
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left + (double)right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return (String)left + (String)right;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Object subtract(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left - (double)right;
+    }
+
+    static Object multiply(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left * (double)right;
+    }
+
+    static Object divide(Object left, Object right, Token operator) {
+        checkNumberOperands(operator, left, right);
+        return (double)left / (double)right;
+    }
+
+    static Object greater(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left > (double)right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return ((String)left).compareTo((String)right) > 0;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Object greaterEqual(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left >= (double)right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return ((String)left).compareTo((String)right) >= 0;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Object less(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left < (double)right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return ((String)left).compareTo((String)right) < 0;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Object lessEqual(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double)left <= (double)right;
+        }
+        if (left instanceof String && right instanceof String) {
+            return ((String)left).compareTo((String)right) <= 0;
+        }
+        throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+    }
+
+    static Object equal(Object left, Object right) {
+        return Interpreter.isEqual(left, right);
+    }
+
+    static Object notEqual(Object left, Object right) {
+        return !Interpreter.isEqual(left, right);
+    }
+
+    static Object not(Object right) {
+        return !Interpreter.isTruthy(right);
+    }
+
+    static Object negate(Object right, Token operator) {
+        if (!(right instanceof Double)) {
+            throw new RuntimeError(operator, "Operand must be a number.");
+        }
+        return -(double)right;
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    static Object assignCell(Object cell, Object value) {
+        ((Cell)cell).value = value;
+        return value;
+    }
+
+    static LoxInstance checkInstance(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name, "Only instances have fields.");
+        }
+        return (LoxInstance)object;
+    }
+
+    private static void checkNumberOperands(Token operator,
+            Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) return;
+        throw new RuntimeError(operator, "Operands must be a number");
+    }
+}
@@ -6,27 +6,80 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter = null;
+    private static VM vm = null;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    static boolean verbose = false;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        String engine = "tree";
+        String script = null;
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                engine = arg.substring("--engine=".length());
+            } else if (arg.equals("--no-optimize")) {
+                Optimizer.enabled = false;
+            } else if (arg.equals("--verbose")) {
+                verbose = true;
+            } else if (arg.equals("--ic-stats")) {
+                InlineCache.sites = new ArrayList<>();
+            } else if (arg.startsWith("--jit-threshold=")) {
+                try {
+                    JitCompiler.threshold = Integer.parseInt(
+                            arg.substring("--jit-threshold=".length()));
+                } catch (NumberFormatException error) {
+                    usage();
+                }
+            } else if (arg.startsWith("--scan-threads=")) {
+                try {
+                    Scanner.threads = Integer.parseInt(
+                            arg.substring("--scan-threads=".length()));
+                } catch (NumberFormatException error) {
+                    usage();
+                }
+                if (Scanner.threads < 1) usage();
+            } else if (arg.startsWith("--max-frames=")) {
+                try {
+                    VM.maxFrames = Integer.parseInt(
+                            arg.substring("--max-frames=".length()));
+                } catch (NumberFormatException error) {
+                    usage();
+                }
+                if (VM.maxFrames < 1) usage();
+            } else if (script == null) {
+                script = arg;
+            } else {
+                usage();
+            }
+        }
+
+        switch (engine) {
+        case "tree": interpreter = new Interpreter(); break;
+        case "vm": vm = new VM(); break;
+        default: usage();
+        }
+
+        if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage: jlox [--engine=tree|vm] [--jit-threshold=N] [--max-frames=N] [--scan-threads=N] [--no-optimize] [--verbose] [--ic-stats] [script]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
         byte[] bytes = Files.readAllBytes(Paths.get(path));
         run(new String(bytes, Charset.defaultCharset()));
+        if (InlineCache.sites != null) InlineCache.printStats();
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
@@ -45,7 +98,7 @@ public class Lox {
 
     private static void run(String source) {
         Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        TokenBuffer tokens = scanner.scanTokens();
         Parser parser = new Parser(tokens);
         List<Stmt> statements = parser.parse();
         if (hadError) return;
@@ -54,7 +107,20 @@ public class Lox {
         resolver.resolve(statements);
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        if (Optimizer.enabled) {
+            Optimizer optimizer = new Optimizer();
+            List<Stmt> optimized = optimizer.optimize(statements);
+            if (verbose) optimizer.report(optimized);
+            statements = optimized;
+        }
+
+        if (vm != null) {
+            ObjFunction script = new BytecodeCompiler(vm).compile(statements);
+            if (hadError) return;
+            vm.interpret(script);
+        } else {
+            interpreter.interpret(statements);
+        }
     }
 
     static void error(int line, String message) {
@@ -76,9 +142,11 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.printf("%s\n[line %d]\n",
-                error.getMessage(),
-                error.token.line);
+        runtimeError(error.token.line, error.getMessage());
+    }
+
+    static void runtimeError(int line, String message) {
+        System.err.printf("%s\n[line %d]\n", message, line);
         hadRuntimeError = true;
     }
 }
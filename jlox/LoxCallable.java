@@ -1,8 +1,26 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 interface LoxCallable {
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    // Entry points for the common arities, so a call with few arguments
+    // doesn't have to build an array. The interpreter has already checked
+    // the argument count against arity() when it calls one of these.
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[] {a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[] {a, b});
+    }
+
+    default Object call3(Interpreter interpreter,
+            Object a, Object b, Object c) {
+        return call(interpreter, new Object[] {a, b, c});
+    }
 }
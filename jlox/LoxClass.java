@@ -1,64 +1,58 @@
 package com.craftinginterpreters.lox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
     final String name;
     final List<LoxClass> superclasses;
-    private final Map<String, LoxFunction> methods;
-    private final Map<String, LoxFunction> getters;
-    private final Map<String, LoxFunction> statics;
+    // Classes can't change once they're declared, so each table holds
+    // every member the class can see: its own first, then each
+    // superclass's table in the order the mixins were listed. That's the
+    // same depth-first, left-to-right order a recursive search would use.
+    private final Map<Symbol, LoxFunction> methods;
+    private final Map<Symbol, LoxFunction> getters;
+    private final Map<Symbol, LoxFunction> statics;
+    private final LoxFunction initializer;
+    // root of the shape tree for this class's instances
+    final Shape emptyShape = new Shape();
 
     LoxClass(String name,
             List<LoxClass> superclasses,
-            Map<String, LoxFunction> methods,
-            Map<String, LoxFunction> getters,
-            Map<String, LoxFunction> statics) {
+            Map<Symbol, LoxFunction> methods,
+            Map<Symbol, LoxFunction> getters,
+            Map<Symbol, LoxFunction> statics) {
         this.name = name;
         this.superclasses = superclasses;
-        this.methods = methods;
-        this.getters = getters;
-        this.statics = statics;
-    }
-
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
+        this.methods = new HashMap<>(methods);
+        this.getters = new HashMap<>(getters);
+        this.statics = new HashMap<>(statics);
         for (LoxClass superclass : superclasses) {
-            LoxFunction result = superclass.findMethod(name);
-            if (result != null) {
-                return result;
-            }
+            inherit(this.methods, superclass.methods);
+            inherit(this.getters, superclass.getters);
+            inherit(this.statics, superclass.statics);
         }
-        return null;
+        this.initializer = this.methods.get(Symbol.INIT);
     }
 
-    LoxFunction findGetter(String name) {
-        if (getters.containsKey(name)) {
-            return getters.get(name);
-        }
-        for (LoxClass superclass : superclasses) {
-            LoxFunction result = superclass.findGetter(name);
-            if (result != null) {
-                return result;
-            }
+    private static void inherit(Map<Symbol, LoxFunction> table,
+            Map<Symbol, LoxFunction> inherited) {
+        for (Map.Entry<Symbol, LoxFunction> entry : inherited.entrySet()) {
+            table.putIfAbsent(entry.getKey(), entry.getValue());
         }
-        return null;
     }
 
-    LoxFunction findStaticMethod(String name) {
-        if (statics.containsKey(name)) {
-            return statics.get(name);
-        }
-        for (LoxClass superclass : superclasses) {
-            LoxFunction result = superclass.findStaticMethod(name);
-            if (result != null) {
-                return result;
-            }
-        }
-        return null;
+    LoxFunction findMethod(Symbol name) {
+        return methods.get(name);
+    }
+
+    LoxFunction findGetter(Symbol name) {
+        return getters.get(name);
+    }
+
+    LoxFunction findStaticMethod(Symbol name) {
+        return statics.get(name);
     }
 
     @Override
@@ -68,18 +62,45 @@ class LoxClass implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.call(interpreter, instance, arguments);
         }
         return instance;
     }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        LoxInstance instance = new LoxInstance(this);
+        if (initializer != null) initializer.call0(interpreter, instance);
+        return instance;
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.call1(interpreter, instance, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.call2(interpreter, instance, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter,
+            Object a, Object b, Object c) {
+        LoxInstance instance = new LoxInstance(this);
+        initializer.call3(interpreter, instance, a, b, c);
+        return instance;
+    }
 }
@@ -1,25 +1,30 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 class LoxFunction implements LoxCallable {
     private final Stmt.Function declaration;
-    private final Environment closure;
+    private final Object[] upvalues;
     private final boolean isInitializer;
     final boolean isGetter;
+    // what this refers to once the method has been bound
+    final LoxInstance receiver;
 
-    LoxFunction(Stmt.Function declaration, Environment closure,
+    LoxFunction(Stmt.Function declaration, Object[] upvalues,
             boolean isInitializer, boolean isGetter) {
-        this.closure = closure;
+        this(declaration, upvalues, isInitializer, isGetter, null);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Object[] upvalues,
+            boolean isInitializer, boolean isGetter, LoxInstance receiver) {
+        this.upvalues = upvalues;
         this.declaration = declaration;
         this.isInitializer = isInitializer;
         this.isGetter = isGetter;
+        this.receiver = receiver;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer, isGetter);
+        return new LoxFunction(declaration, upvalues, isInitializer, isGetter,
+                instance);
     }
 
     @Override
@@ -28,22 +33,155 @@ class LoxFunction implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return call(interpreter, receiver, arguments);
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return call0(interpreter, receiver);
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        return call1(interpreter, receiver, a);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        return call2(interpreter, receiver, a, b);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter,
+            Object a, Object b, Object c) {
+        return call3(interpreter, receiver, a, b, c);
+    }
+
+    // The methods below call the function with this set to receiver,
+    // without binding it first.
+    Object call(Interpreter interpreter, LoxInstance receiver,
+            Object[] arguments) {
+        return interpreter.completeTailCalls(
+                enter(interpreter, receiver, arguments));
+    }
+
+    Object call0(Interpreter interpreter, LoxInstance receiver) {
+        JitCode code = compiled();
+        if (code != null) {
+            return result(interpreter,
+                    code.invoke0(interpreter, upvalues, receiver), receiver);
         }
-        try {
+        return interpreter.completeTailCalls(
+                execute(interpreter, frame(receiver), receiver));
+    }
+
+    Object call1(Interpreter interpreter, LoxInstance receiver, Object a) {
+        JitCode code = compiled();
+        if (code != null) {
+            return result(interpreter,
+                    code.invoke1(interpreter, upvalues, receiver, a), receiver);
+        }
+        Environment environment = frame(receiver);
+        environment.define(firstParam(), a);
+        return interpreter.completeTailCalls(
+                execute(interpreter, environment, receiver));
+    }
+
+    Object call2(Interpreter interpreter, LoxInstance receiver,
+            Object a, Object b) {
+        JitCode code = compiled();
+        if (code != null) {
+            return result(interpreter,
+                    code.invoke2(interpreter, upvalues, receiver, a, b),
+                    receiver);
+        }
+        Environment environment = frame(receiver);
+        int firstParam = firstParam();
+        environment.define(firstParam, a);
+        environment.define(firstParam + 1, b);
+        return interpreter.completeTailCalls(
+                execute(interpreter, environment, receiver));
+    }
+
+    Object call3(Interpreter interpreter, LoxInstance receiver,
+            Object a, Object b, Object c) {
+        JitCode code = compiled();
+        if (code != null) {
+            return result(interpreter,
+                    code.invoke3(interpreter, upvalues, receiver, a, b, c),
+                    receiver);
+        }
+        Environment environment = frame(receiver);
+        int firstParam = firstParam();
+        environment.define(firstParam, a);
+        environment.define(firstParam + 1, b);
+        environment.define(firstParam + 2, c);
+        return interpreter.completeTailCalls(
+                execute(interpreter, environment, receiver));
+    }
+
+    // Runs the body and returns what it returned, which may be a tail
+    // call the caller still has to complete.
+    Object enter(Interpreter interpreter, LoxInstance receiver,
+            Object[] arguments) {
+        JitCode code = compiled();
+        if (code != null) {
+            return result(code.invoke(interpreter, upvalues, receiver,
+                        arguments), receiver);
+        }
+        Environment environment = frame(receiver);
+        int firstParam = firstParam();
+        for (int i = 0; i < arguments.length; i++) {
+            environment.define(firstParam + i, arguments[i]);
+        }
+        return execute(interpreter, environment, receiver);
+    }
+
+    // Counts the call and returns the compiled body, once there is one.
+    private JitCode compiled() {
+        // the count lives on the declaration so that bound copies of a
+        // method share it
+        JitCode code = declaration.jitCode;
+        if (code == null
+                && ++declaration.callCount == JitCompiler.threshold) {
+            code = declaration.jitCode = JitCompiler.compile(declaration);
+        }
+        return code;
+    }
+
+    private int firstParam() {
+        return declaration.isMethod ? 1 : 0;
+    }
+
+    private Environment frame(LoxInstance receiver) {
+        Environment environment = new Environment(upvalues,
+                declaration.frameSize);
+        if (declaration.isMethod) environment.define(0, receiver);
+        return environment;
+    }
+
+    private Object execute(Interpreter interpreter, Environment environment,
+            LoxInstance receiver) {
+        environment.moveToCells(declaration.cellSlots);
+        Completion completion =
             interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+        if (isInitializer) return receiver;
+        if (completion == Completion.RETURN) {
+            return interpreter.takeReturnValue();
         }
-        if (isInitializer) return closure.getAt(0, "this");
         return null;
     }
 
+    private Object result(Object value, LoxInstance receiver) {
+        return isInitializer ? receiver : value;
+    }
+
+    private Object result(Interpreter interpreter, Object value,
+            LoxInstance receiver) {
+        return interpreter.completeTailCalls(result(value, receiver));
+    }
+
     @Override
     public String toString() {
         return "<fn " + declaration.name.lexeme + ">";
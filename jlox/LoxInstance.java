@@ -1,32 +1,67 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private LoxClass cls;
-    private final Map<String, Object> fields = new HashMap<>();
+    private Shape shape;
+    private Object[] values = NO_FIELDS;
 
     LoxInstance(LoxClass cls) {
         this.cls = cls;
+        this.shape = cls.emptyShape;
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
-        }
-        LoxFunction method = cls.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
+    // Returns the entry of cache that describes what its name refers to on
+    // this instance: a field index, or an unbound method or getter.
+    int lookUp(InlineCache cache) {
+        int entry = cache.lookup(shape);
+        if (entry != -1) return entry;
+
+        Token name = cache.name;
+        int index = shape.indexOf(name.symbol);
+        if (index != -1) return cache.add(shape, index, null, null);
 
-        LoxFunction getter = cls.findGetter(name.lexeme);
-        if (getter != null) return getter.bind(this);
+        LoxFunction method = cls.findMethod(name.symbol);
+        if (method == null) method = cls.findGetter(name.symbol);
+        if (method != null) return cache.add(shape, -1, method, null);
 
         throw new RuntimeError(name,
                 "Undefined property '" + name.lexeme + "'.");
     }
 
-    void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+    Object getField(int index) {
+        return values[index];
+    }
+
+    void set(InlineCache cache, Object value) {
+        int entry = cache.lookup(shape);
+        if (entry != -1) {
+            Shape transition = cache.transitions[entry];
+            if (transition != null) addField(transition);
+            values[cache.indexes[entry]] = value;
+            return;
+        }
+
+        Shape before = shape;
+        int index = shape.indexOf(cache.name.symbol);
+        if (index == -1) {
+            index = shape.size;
+            addField(shape.withField(cache.name.symbol));
+            cache.add(before, index, null, shape);
+        } else {
+            cache.add(before, index, null, null);
+        }
+        values[index] = value;
+    }
+
+    private void addField(Shape next) {
+        if (shape.size == values.length) {
+            values = Arrays.copyOf(values, Math.max(4, shape.size * 2));
+        }
+        shape = next;
     }
 
     @Override
@@ -1,14 +1,12 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 class LoxLambda implements LoxCallable {
     private final Expr.Lambda lambda;
-    private final Environment closure;
+    private final Object[] upvalues;
 
-    LoxLambda(Expr.Lambda lambda, Environment closure) {
+    LoxLambda(Expr.Lambda lambda, Object[] upvalues) {
         this.lambda = lambda;
-        this.closure = closure;
+        this.upvalues = upvalues;
     }
 
     @Override
@@ -17,16 +15,60 @@ class LoxLambda implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < lambda.params.size(); i++) {
-            environment.define(lambda.params.get(i).lexeme,
-                    arguments.get(i));
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        return interpreter.completeTailCalls(enter(interpreter, arguments));
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
+        return interpreter.completeTailCalls(execute(interpreter,
+                    new Environment(upvalues, lambda.frameSize)));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Environment environment = new Environment(upvalues, lambda.frameSize);
+        environment.define(0, a);
+        return interpreter.completeTailCalls(
+                execute(interpreter, environment));
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Environment environment = new Environment(upvalues, lambda.frameSize);
+        environment.define(0, a);
+        environment.define(1, b);
+        return interpreter.completeTailCalls(
+                execute(interpreter, environment));
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter,
+            Object a, Object b, Object c) {
+        Environment environment = new Environment(upvalues, lambda.frameSize);
+        environment.define(0, a);
+        environment.define(1, b);
+        environment.define(2, c);
+        return interpreter.completeTailCalls(
+                execute(interpreter, environment));
+    }
+
+    // Runs the body and returns what it returned, which may be a tail
+    // call the caller still has to complete.
+    Object enter(Interpreter interpreter, Object[] arguments) {
+        Environment environment = new Environment(upvalues, lambda.frameSize);
+        for (int i = 0; i < arguments.length; i++) {
+            environment.define(i, arguments[i]);
         }
-        try {
+        return execute(interpreter, environment);
+    }
+
+    private Object execute(Interpreter interpreter, Environment environment) {
+        environment.moveToCells(lambda.cellSlots);
+        Completion completion =
             interpreter.executeBlock(lambda.body, environment);
-        } catch (Return returnValue) {
-            return returnValue.value;
+        if (completion == Completion.RETURN) {
+            return interpreter.takeReturnValue();
         }
         return null;
     }
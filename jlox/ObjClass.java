@@ -0,0 +1,28 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class ObjClass {
+    final String name;
+    final Map<String, ObjClosure> methods = new HashMap<>();
+    final Map<String, ObjClosure> getters = new HashMap<>();
+    final Map<String, ObjClosure> statics = new HashMap<>();
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    // Copies down a mixin's members. Mixins are inherited in declaration
+    // order, so members already present (from an earlier mixin) win.
+    void inherit(ObjClass superclass) {
+        superclass.methods.forEach(methods::putIfAbsent);
+        superclass.getters.forEach(getters::putIfAbsent);
+        superclass.statics.forEach(statics::putIfAbsent);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,19 @@
+package com.craftinginterpreters.lox;
+
+class ObjFunction {
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity = 0;
+    int upvalueCount = 0;
+
+    // name is null for lambdas and the top-level script
+    ObjFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<lambda fn>";
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,13 @@
+package com.craftinginterpreters.lox;
+
+class ObjUpvalue {
+    // index of the captured slot on the VM stack while the upvalue is
+    // open, -1 once it has been closed over
+    int location;
+    Object closed = null;
+    ObjUpvalue next = null;
+
+    ObjUpvalue(int location) {
+        this.location = location;
+    }
+}
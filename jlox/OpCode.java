@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+// Instruction set of the bytecode VM, modeled on clox/chunk.h. Operands
+// follow the opcode: constant, name and global indexes take two bytes,
+// local slots, upvalue indexes and argument counts take one.
+final class OpCode {
+    static final byte OP_CONSTANT = 0;
+    static final byte OP_NIL = 1;
+    static final byte OP_TRUE = 2;
+    static final byte OP_FALSE = 3;
+    static final byte OP_UNINITIALIZED = 4;
+    static final byte OP_POP = 5;
+    static final byte OP_GET_LOCAL = 6;
+    static final byte OP_SET_LOCAL = 7;
+    static final byte OP_GET_GLOBAL = 8;
+    static final byte OP_DEFINE_GLOBAL = 9;
+    static final byte OP_SET_GLOBAL = 10;
+    static final byte OP_GET_UPVALUE = 11;
+    static final byte OP_SET_UPVALUE = 12;
+    static final byte OP_CHECK_INITIALIZED = 13;
+    static final byte OP_GET_PROPERTY = 14;
+    static final byte OP_SET_PROPERTY = 15;
+    static final byte OP_GET_SUPER = 16;
+    static final byte OP_EQUAL = 17;
+    static final byte OP_GREATER = 18;
+    static final byte OP_GREATER_EQUAL = 19;
+    static final byte OP_LESS = 20;
+    static final byte OP_LESS_EQUAL = 21;
+    static final byte OP_ADD = 22;
+    static final byte OP_SUBTRACT = 23;
+    static final byte OP_MULTIPLY = 24;
+    static final byte OP_DIVIDE = 25;
+    static final byte OP_NOT = 26;
+    static final byte OP_NEGATE = 27;
+    static final byte OP_PRINT = 28;
+    static final byte OP_JUMP = 29;
+    static final byte OP_JUMP_IF_FALSE = 30;
+    static final byte OP_LOOP = 31;
+    static final byte OP_CALL = 32;
+    static final byte OP_INVOKE = 33;
+    static final byte OP_SUPER_INVOKE = 34;
+    static final byte OP_CLOSURE = 35;
+    static final byte OP_CLOSE_UPVALUE = 36;
+    static final byte OP_RETURN = 37;
+    static final byte OP_CLASS = 38;
+    static final byte OP_INHERIT = 39;
+    static final byte OP_METHOD = 40;
+    static final byte OP_GETTER = 41;
+    static final byte OP_STATIC_METHOD = 42;
+
+    private OpCode() {}
+}
@@ -0,0 +1,482 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Rewrites a resolved syntax tree before it runs: folds operators whose
+// operands are literals, drops branches and loops whose condition is a
+// literal, unwraps groupings, drops statements after a jump and fuses
+// an operator applied to a local and a number into one node. It runs
+// after the Resolver, so compile errors are still reported for the code
+// it removes. Nodes it rebuilds copy what the Resolver filled in, and an
+// operation that would fail at runtime is left alone so the error
+// happens when and where it always did.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    static boolean enabled = true;
+
+    // nodes visited, expressions turned into literals and fused nodes
+    // made, for --verbose
+    private int nodes = 0;
+    private int folded = 0;
+    private int fused = 0;
+    // off inside the parts of a counted loop the interpreter reads itself
+    private boolean isFusing = true;
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        List<Stmt> result = new ArrayList<>();
+        boolean changed = false;
+        boolean isReachable = true;
+        for (Stmt statement : statements) {
+            Stmt optimized = optimize(statement);
+            if (optimized == null || !isReachable) {
+                changed = true;
+                continue;
+            }
+            if (optimized != statement) changed = true;
+            result.add(optimized);
+            // nothing after a jump in the same block can run
+            if (isJump(optimized)) isReachable = false;
+        }
+        return changed ? result : statements;
+    }
+
+    // Prints how much of the tree the pass removed.
+    void report(List<Stmt> optimized) {
+        Optimizer counter = new Optimizer();
+        counter.optimize(optimized);
+        System.err.printf(
+                "[optimizer] removed %d of %d nodes, folded %d expressions, "
+                + "fused %d\n", nodes - counter.nodes, nodes, folded, fused);
+    }
+
+    private Stmt optimize(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private Expr optimize(Expr expr) {
+        return expr.accept(this);
+    }
+
+    // a statement that has to stay in place, even if it does nothing
+    private Stmt required(Stmt stmt) {
+        Stmt optimized = optimize(stmt);
+        if (optimized != null) return optimized;
+        return new Stmt.Block(new ArrayList<Stmt>());
+    }
+
+    private static boolean isJump(Stmt stmt) {
+        return stmt instanceof Stmt.Return || stmt instanceof Stmt.Break
+            || stmt instanceof Stmt.Continue;
+    }
+
+    private Expr.Literal fold(Object value) {
+        folded++;
+        return new Expr.Literal(value);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        nodes++;
+        List<Stmt> statements = optimize(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.frameSize = stmt.frameSize;
+        block.hasEnvironment = stmt.hasEnvironment;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        nodes++;
+        nodes += stmt.mixins.size();
+        List<Stmt.Function> methods = optimizeFunctions(stmt.methods);
+        List<Stmt.Function> getters = optimizeFunctions(stmt.getters);
+        List<Stmt.Function> statics = optimizeFunctions(stmt.statics);
+        if (methods == stmt.methods && getters == stmt.getters
+                && statics == stmt.statics) {
+            return stmt;
+        }
+        Stmt.Class optimized = new Stmt.Class(stmt.name, stmt.mixins,
+                methods, getters, statics);
+        optimized.slot = stmt.slot;
+        optimized.isCell = stmt.isCell;
+        optimized.superSlot = stmt.superSlot;
+        return optimized;
+    }
+
+    private List<Stmt.Function> optimizeFunctions(
+            List<Stmt.Function> functions) {
+        List<Stmt.Function> result = new ArrayList<>();
+        boolean changed = false;
+        for (Stmt.Function function : functions) {
+            Stmt.Function optimized = (Stmt.Function)optimize(function);
+            result.add(optimized);
+            if (optimized != function) changed = true;
+        }
+        return changed ? result : functions;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        nodes++;
+        Expr expression = optimize(stmt.expression);
+        // a literal on its own has no effect
+        if (expression instanceof Expr.Literal) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        nodes++;
+        nodes += stmt.params.size();
+        List<Stmt> body = optimize(stmt.body);
+        if (body == stmt.body) return stmt;
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params,
+                body);
+        function.slot = stmt.slot;
+        function.isCell = stmt.isCell;
+        function.frameSize = stmt.frameSize;
+        function.isMethod = stmt.isMethod;
+        function.captures = stmt.captures;
+        function.cellSlots = stmt.cellSlots;
+        return function;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        // else-if chains are walked in a loop and rebuilt from the end
+        // rather than optimized with a call per link
+        List<Stmt.If> links = new ArrayList<>();
+        List<Expr> conditions = new ArrayList<>();
+        List<Stmt> thenBranches = new ArrayList<>();
+        Stmt rest = stmt;
+        while (rest instanceof Stmt.If) {
+            Stmt.If link = (Stmt.If)rest;
+            nodes++;
+            links.add(link);
+            conditions.add(optimize(link.condition));
+            thenBranches.add(required(link.thenBranch));
+            rest = link.elseBranch;
+        }
+
+        Stmt elseBranch = rest == null ? null : optimize(rest);
+        for (int i = links.size() - 1; i >= 0; i--) {
+            elseBranch = ifStatement(links.get(i), conditions.get(i),
+                    thenBranches.get(i), elseBranch);
+        }
+        return elseBranch;
+    }
+
+    private Stmt ifStatement(Stmt.If stmt, Expr condition, Stmt thenBranch,
+            Stmt elseBranch) {
+        if (condition instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)condition).value;
+            return Interpreter.isTruthy(value) ? thenBranch : elseBranch;
+        }
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elseBranch) {
+            return stmt;
+        }
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        nodes++;
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        nodes++;
+        if (stmt.value == null) return stmt;
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        Stmt.Return optimized = new Stmt.Return(stmt.keyword, value);
+        // unwrapping (f()) can turn the value into a call
+        optimized.isTailCall = value instanceof Expr.Call;
+        return optimized;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        nodes++;
+        if (stmt.initializer == null) return stmt;
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+        var.slot = stmt.slot;
+        var.isCell = stmt.isCell;
+        return var;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        nodes++;
+        Expr condition = optimize(stmt.condition);
+        Stmt body = required(stmt.body);
+        if (condition instanceof Expr.Literal
+                && !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        nodes++;
+        boolean wasFusing = isFusing;
+        // the interpreter takes a counted loop's condition and increment
+        // apart, so they have to keep their shape
+        if (stmt.isCounted) isFusing = false;
+        Expr condition = optimize(stmt.condition);
+        Expr increment = stmt.increment == null
+            ? null : optimize(stmt.increment);
+        isFusing = wasFusing;
+        Stmt body = required(stmt.body);
+        if (condition instanceof Expr.Literal
+                && !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+            return null;
+        }
+        if (condition == stmt.condition && increment == stmt.increment
+                && body == stmt.body) {
+            return stmt;
+        }
+        // folding the limit or the step leaves the loop's shape alone
+        Stmt.For loop = new Stmt.For(condition, increment, body);
+        loop.isCounted = stmt.isCounted;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        nodes++;
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitContinueStmt(Stmt.Continue stmt) {
+        nodes++;
+        return stmt;
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        nodes++;
+        Expr left = optimize(expr.left);
+        Expr middle = optimize(expr.middle);
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)left).value;
+            return Interpreter.isTruthy(value) ? middle : right;
+        }
+        if (left == expr.left && middle == expr.middle
+                && right == expr.right) {
+            return expr;
+        }
+        return new Expr.Ternary(left, middle, right);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        nodes++;
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.access = expr.access;
+        assign.slot = expr.slot;
+        assign.global = expr.global;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        return operators(expr);
+    }
+
+    // A chain like a + b + c + ... parses into a tree that leans left as
+    // deep as the chain is long, so its left spine is walked in a loop and
+    // each operator rebuilt on the way back up, in source order.
+    private Expr operators(Expr expr) {
+        List<Expr> spine = new ArrayList<>();
+        while (expr instanceof Expr.Binary || expr instanceof Expr.Logical) {
+            spine.add(expr);
+            expr = expr instanceof Expr.Binary
+                ? ((Expr.Binary)expr).left : ((Expr.Logical)expr).left;
+        }
+
+        Expr left = optimize(expr);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            Expr operator = spine.get(i);
+            left = operator instanceof Expr.Binary
+                ? binary((Expr.Binary)operator, left)
+                : logical((Expr.Logical)operator, left);
+        }
+        Resolver.markChain(left, spine.size());
+        return left;
+    }
+
+    private Expr binary(Expr.Binary expr, Expr left) {
+        nodes++;
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            try {
+                return fold(Interpreter.binary(expr.operator,
+                            ((Expr.Literal)left).value,
+                            ((Expr.Literal)right).value));
+            } catch (RuntimeError error) {
+                // keep the node so the error is reported when it runs
+            }
+        }
+        if (left != expr.left || right != expr.right) {
+            expr = new Expr.Binary(left, expr.operator, right);
+        }
+        return fuse(expr);
+    }
+
+    // Counting node visits while running the examples showed that almost
+    // all binary operators executed combine a local variable with a number
+    // literal, like n - 1 and n <= 1 in fib, and that most conditions are
+    // such comparisons. A fused node reads the local's slot and the number
+    // itself instead of visiting two more nodes.
+    private Expr fuse(Expr.Binary expr) {
+        if (!isFusing || !(expr.left instanceof Expr.Variable)
+                || !(expr.right instanceof Expr.Literal)) {
+            return expr;
+        }
+        Expr.Variable variable = (Expr.Variable)expr.left;
+        Object constant = ((Expr.Literal)expr.right).value;
+        if (variable.access != Access.LOCAL || !(constant instanceof Double)) {
+            return expr;
+        }
+        fused++;
+        return new Expr.FusedBinary(expr, variable.slot, (double)constant);
+    }
+
+    @Override
+    public Expr visitFusedBinaryExpr(Expr.FusedBinary expr) {
+        // the operator and both operands
+        nodes += 3;
+        return expr;
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        nodes++;
+        Expr callee = optimize(expr.callee);
+        List<Expr> arguments = new ArrayList<>();
+        boolean changed = callee != expr.callee;
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            arguments.add(optimized);
+            if (optimized != argument) changed = true;
+        }
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        nodes++;
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        Expr.Get get = new Expr.Get(object, expr.name);
+        get.cache = expr.cache;
+        return get;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        nodes++;
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLambdaExpr(Expr.Lambda expr) {
+        nodes++;
+        nodes += expr.params.size();
+        List<Stmt> body = optimize(expr.body);
+        if (body == expr.body) return expr;
+        Expr.Lambda lambda = new Expr.Lambda(expr.params, body);
+        lambda.frameSize = expr.frameSize;
+        lambda.captures = expr.captures;
+        lambda.cellSlots = expr.cellSlots;
+        return lambda;
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        nodes++;
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        return operators(expr);
+    }
+
+    private Expr logical(Expr.Logical expr, Expr left) {
+        nodes++;
+        Expr right = optimize(expr.right);
+        if (left instanceof Expr.Literal) {
+            // the same choice the interpreter makes at runtime
+            boolean isTruthy =
+                Interpreter.isTruthy(((Expr.Literal)left).value);
+            if (expr.operator.type == TokenType.OR) {
+                return isTruthy ? left : right;
+            }
+            return isTruthy ? right : left;
+        }
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        nodes++;
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        Expr.Set set = new Expr.Set(object, expr.name, value);
+        set.cache = expr.cache;
+        return set;
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        nodes++;
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        nodes++;
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        nodes++;
+        Expr right = optimize(expr.right);
+        if (right instanceof Expr.Literal) {
+            try {
+                return fold(Interpreter.unary(expr.operator,
+                            ((Expr.Literal)right).value));
+            } catch (RuntimeError error) {
+                // keep the node so the error is reported when it runs
+            }
+        }
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        nodes++;
+        return expr;
+    }
+}
@@ -8,19 +8,33 @@ import static com.craftinginterpreters.lox.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {}
+    // thrown once nesting gets too deep, to stop parsing altogether
+    private static class NestingError extends RuntimeException {}
+
+    // Statements and expressions nest no deeper than this. The passes
+    // after the parser walk nested blocks, groupings and the like
+    // recursively, so deeper code would overflow the JVM's stack.
+    private static final int MAX_NESTING = 256;
+    private int nesting = 0;
     private int loopDepth = 0;
 
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
     private int current = 0;
+    private Token previous;
+    private int previousIndex = -1;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
     }
 
     List<Stmt> parse() {
         List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-            statements.add(declaration());
+        try {
+            while (!isAtEnd()) {
+                statements.add(declaration());
+            }
+        } catch (NestingError error) {
+            // reported where it happened; the rest isn't worth parsing
         }
         return statements;
     }
@@ -57,7 +71,7 @@ class Parser {
         while (!check(RIGHT_BRACE) && !isAtEnd()) {
             if (match(CLASS)) {
                 statics.add(staticMethod());
-            } else if (peekNext().type == LEFT_PAREN) {
+            } else if (peekNextType() == LEFT_PAREN) {
                 methods.add(function("method"));
             } else {
                 getters.add(getter());
@@ -84,7 +98,7 @@ class Parser {
             Expr condition = expression();
             consume(RIGHT_PAREN, "Expect ')' after condition.");
             Stmt body = statement();
-            return new Stmt.While(condition, body, false);
+            return new Stmt.While(condition, body);
         } finally {
             --loopDepth;
         }
@@ -117,16 +131,10 @@ class Parser {
 
             Stmt body = statement();
 
-            if (increment != null) {
-                body = new Stmt.Block(Arrays.asList(
-                            body,
-                            new Stmt.Expression(increment)));
-            }
-
             if (condition == null) {
                 condition = new Expr.Literal(true);
             }
-            body = new Stmt.While(condition, body, true);
+            body = new Stmt.For(condition, increment, body);
 
             if (initializer != null) {
                 body = new Stmt.Block(Arrays.asList(initializer, body));
@@ -138,15 +146,20 @@ class Parser {
     }
 
     private Stmt statement() {
-        if (match(BREAK)) return breakStatement();
-        if (match(CONTINUE)) return continueStatement();
-        if (match(FOR)) return forStatement();
-        if (match(IF)) return ifStatement();
-        if (match(PRINT)) return printStatement();
-        if (match(RETURN)) return returnStatement();
-        if (match(WHILE)) return whileStatement();
-        if (match(LEFT_BRACE)) return new Stmt.Block(block());
-        return expressionStatement();
+        try {
+            nest();
+            if (match(BREAK)) return breakStatement();
+            if (match(CONTINUE)) return continueStatement();
+            if (match(FOR)) return forStatement();
+            if (match(IF)) return ifStatement();
+            if (match(PRINT)) return printStatement();
+            if (match(RETURN)) return returnStatement();
+            if (match(WHILE)) return whileStatement();
+            if (match(LEFT_BRACE)) return new Stmt.Block(block());
+            return expressionStatement();
+        } finally {
+            nesting--;
+        }
     }
 
     private Stmt returnStatement() {
@@ -176,17 +189,29 @@ class Parser {
         return stmt;
     }
 
+    // An else-if chain is parsed in a loop and nested from the end, so a
+    // long generated chain doesn't need a call per link.
     private Stmt ifStatement() {
-        consume(LEFT_PAREN, "Expect '(' after 'if'.");
-        Expr condition = expression();
-        consume(RIGHT_PAREN, "Expect ')' after if condition.");
-
-        Stmt thenBranch = statement();
+        List<Expr> conditions = new ArrayList<>();
+        List<Stmt> thenBranches = new ArrayList<>();
         Stmt elseBranch = null;
-        if (match(ELSE)) {
-            elseBranch = statement();
+        do {
+            consume(LEFT_PAREN, "Expect '(' after 'if'.");
+            conditions.add(expression());
+            consume(RIGHT_PAREN, "Expect ')' after if condition.");
+            thenBranches.add(statement());
+            if (!match(ELSE)) break;
+            if (!match(IF)) {
+                elseBranch = statement();
+                break;
+            }
+        } while (true);
+
+        for (int i = conditions.size() - 1; i >= 0; i--) {
+            elseBranch = new Stmt.If(conditions.get(i), thenBranches.get(i),
+                    elseBranch);
         }
-        return new Stmt.If(condition, thenBranch, elseBranch);
+        return elseBranch;
     }
 
     private Stmt printStatement() {
@@ -216,14 +241,14 @@ class Parser {
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
 
         consume(LEFT_BRACE, "Expect '{' before " + kind + " body.");
-        List<Stmt> body = block();
+        List<Stmt> body = functionBody();
         return new Stmt.Function(name, parameters, body);
     }
 
     private Stmt.Function getter() {
         Token name = consume(IDENTIFIER, "Expect method name.");
         consume(LEFT_BRACE, "Expect '{' after getter name.");
-        List<Stmt> body = block();
+        List<Stmt> body = functionBody();
         return new Stmt.Function(name, new ArrayList<Token>(), body);
     }
 
@@ -244,10 +269,21 @@ class Parser {
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
         consume(LEFT_BRACE, "Expect '{' before lambda body.");
-        List<Stmt> body = block();
+        List<Stmt> body = functionBody();
         return new Expr.Lambda(parameters, body);
     }
 
+    // break and continue can't reach a loop outside the function they're in
+    private List<Stmt> functionBody() {
+        int enclosingLoopDepth = loopDepth;
+        loopDepth = 0;
+        try {
+            return block();
+        } finally {
+            loopDepth = enclosingLoopDepth;
+        }
+    }
+
     private List<Stmt> block() {
         List<Stmt> statements = new ArrayList<>();
         while (!check(RIGHT_BRACE) && !isAtEnd()) {
@@ -258,8 +294,13 @@ class Parser {
     }
 
     private Expr expression() {
-        if (match(FUN)) return lambda();
-        return assignment();
+        try {
+            nest();
+            if (match(FUN)) return lambda();
+            return assignment();
+        } finally {
+            nesting--;
+        }
     }
 
     private Expr assignment() {
@@ -311,7 +352,7 @@ class Parser {
 
     private Expr comparison() {
         Expr expr = addition();
-        while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
+        while (match(GREATER, GREATER_EQUAL) || match(LESS, LESS_EQUAL)) {
             Token operator = previous();
             Expr right = addition();
             expr = new Expr.Binary(expr, operator, right);
@@ -342,8 +383,13 @@ class Parser {
     private Expr unary() {
         if (match(BANG, MINUS)) {
             Token operator = previous();
-            Expr right = unary();
-            return new Expr.Unary(operator, right);
+            try {
+                nest();
+                Expr right = unary();
+                return new Expr.Unary(operator, right);
+            } finally {
+                nesting--;
+            }
         }
         return call();
     }
@@ -409,59 +455,79 @@ class Parser {
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+        if (check(type)) {
+            advance();
+            return previous();
+        }
         throw error(peek(), message);
     }
 
+    private void nest() {
+        if (++nesting > MAX_NESTING) {
+            error(peek(), "Too much nesting.");
+            throw new NestingError();
+        }
+    }
+
     private ParseError error(Token token, String message) {
         Lox.error(token, message);
         return new ParseError();
     }
 
-    private boolean match(TokenType... types) {
-        for (TokenType type : types) {
-            if (check(type)) {
-                advance();
-                return true;
-            }
-        }
-        return false;
+    // Fixed arities rather than varargs, which would allocate an array
+    // for every check.
+    private boolean match(TokenType type) {
+        if (!check(type)) return false;
+        advance();
+        return true;
+    }
+
+    private boolean match(TokenType first, TokenType second) {
+        return match(first) || match(second);
     }
 
     private boolean check(TokenType type) {
-        return isAtEnd() ? false : peek().type == type;
+        return isAtEnd() ? false : peekType() == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) {
             current++;
         }
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return peekType() == EOF;
     }
 
-    private Token peek() {
-        return tokens.get(current);
+    private TokenType peekType() {
+        return tokens.type(current);
     }
 
-    private Token peekNext() {
-        Token token = peek();
-        if (token.type == EOF) return token;
-        return tokens.get(current + 1);
+    private TokenType peekNextType() {
+        if (isAtEnd()) return EOF;
+        return tokens.type(current + 1);
+    }
+
+    // Tokens only become objects once the parser keeps one in the tree
+    // or reports an error at it.
+    private Token peek() {
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        if (previousIndex != current - 1) {
+            previous = tokens.token(current - 1);
+            previousIndex = current - 1;
+        }
+        return previous;
     }
 
     private void synchronize() {
         advance();
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
-            switch (peek().type) {
+            if (tokens.type(current - 1) == SEMICOLON) return;
+            switch (peekType()) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -1,18 +1,75 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.function.Consumer;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // slot of names that live in the interpreter's globals
+    static final int GLOBAL = -1;
+    // operator chains at least this long are evaluated by a loop over
+    // their spine instead of recursing once per operator
+    static final int LONG_CHAIN = 64;
+
     private static class Variable {
         final Token name;
-        final VariableState state;
-
-        Variable(Token name, VariableState state) {
+        VariableState state;
+        final Scope scope;
+        int slot;
+        // read or assigned from another frame
+        boolean isCaptured;
+        // might change after a closure copies it: it's assigned, or a
+        // closure captures it before its declaration has finished
+        boolean mayChange;
+        // the declaration has been resolved
+        boolean isComplete;
+        // assignments to it resolved so far
+        int assignments;
+
+        Variable(Token name, VariableState state, Scope scope) {
             this.name = name;
             this.state = state;
+            this.scope = scope;
+        }
+
+        // Closures copy a captured variable when they are created, unless
+        // it might change after that. Then it lives in a Cell they share
+        // with the frame that declared it.
+        boolean isCell() {
+            return isCaptured && mayChange;
+        }
+    }
+
+    // A lexical scope. Functions, lambdas and the outermost scope each get
+    // a frame at runtime holding all the variables of their blocks, so
+    // running a block allocates nothing and reaching any variable takes
+    // one step: a slot of the current frame or an upvalue the closure
+    // copied when it was created. Whether a variable is captured and
+    // whether it changes is only known once its scope has been resolved,
+    // so slots and accesses are handed out when the outermost scope ends.
+    private static class Scope {
+        final Scope enclosing;
+        // the scope whose frame holds this scope's variables
+        final Scope frame;
+        // in declaration order, which is also slot order
+        final Map<String, Variable> variables = new LinkedHashMap<>();
+        final List<Scope> children = new ArrayList<>();
+        // for a frame, the variables of enclosing frames its closures
+        // capture, in upvalue order
+        final List<Variable> upvalues = new ArrayList<>();
+        int frameSize;
+
+        Scope(Scope enclosing, boolean isFunction) {
+            this.enclosing = enclosing;
+            this.frame = isFunction || enclosing == null
+                ? this : enclosing.frame;
+            if (enclosing != null) enclosing.children.add(this);
+        }
+
+        boolean isFrame() {
+            return frame == this;
         }
     }
 
@@ -23,8 +80,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private enum ClassType { NONE, CLASS, SUBCLASS }
     private ClassType currentClass = ClassType.NONE;
 
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Variable>> scopes = new Stack<>();
+    private Scope scope = null;
+    // fill in slots and accesses once the outermost scope has ended
+    private final List<Runnable> fixups = new ArrayList<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
     private enum FunctionType {
@@ -38,6 +96,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     private enum LoopType { NONE, WHILE, FOR }
     private LoopType currentLoop = LoopType.NONE;
 
+    // hands out the cells of global names; null when the VM runs the
+    // code, which keeps globals of its own
+    private final Interpreter interpreter;
+
     Resolver(Interpreter interpreter) {
         this.interpreter = interpreter;
     }
@@ -58,9 +120,14 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
+        beginScope(false);
         resolve(stmt.statements);
-        endScope();
+        endScope(block -> {
+            stmt.frameSize = block.frameSize;
+            // an outermost block that declares nothing, like most loop
+            // bodies at top level, has no use for a frame
+            stmt.hasEnvironment = block.isFrame() && block.frameSize > 0;
+        });
         return null;
     }
 
@@ -69,13 +136,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         ClassType enclosingClass = currentClass;
         currentClass = ClassType.CLASS;
 
-        declare(stmt.name);
+        Variable variable = declare(stmt.name);
+        setSlot(variable, (access, slot) -> {
+            stmt.slot = slot;
+            stmt.isCell = access == Access.LOCAL_CELL;
+        });
 
         if (!stmt.mixins.isEmpty()) {
             currentClass = ClassType.SUBCLASS;
-            beginScope();
+            beginScope(false);
             // super refers to first superclass
-            scopes.peek().put("super", new Variable(null, VariableState.READ));
+            declareImplicit("super");
         }
         for (Expr.Variable superclass : stmt.mixins) {
             if (stmt.name.lexeme.equals(superclass.name.lexeme)) {
@@ -85,12 +156,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(superclass);
         }
 
-        beginScope();
-
-        scopes.peek().put("this", new Variable(null, VariableState.READ));
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.symbol == Symbol.INIT) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
@@ -98,13 +166,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         for (Stmt.Function getter : stmt.getters) {
             resolveFunction(getter, FunctionType.GETTER);
         }
+        // static methods get a this slot like any method, but are called
+        // without a receiver, so this is nil in them as it always was
         for (Stmt.Function method : stmt.statics) {
             resolveFunction(method, FunctionType.METHOD);
         }
-        defineClass(stmt.name);
-        endScope();
 
-        if (!stmt.mixins.isEmpty()) endScope();
+        if (!stmt.mixins.isEmpty()) {
+            endScope(superScope ->
+                    stmt.superSlot = superScope.variables.get("super").slot);
+        }
+        defineClass(stmt.name);
+        complete(variable);
 
         currentClass = enclosingClass;
         return null;
@@ -119,23 +192,37 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword,
                     "Cannot use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword, (access, slot) -> {
+            expr.access = access;
+            expr.slot = slot;
+        });
+        resolveLocal(new Token(TokenType.THIS, "this", null,
+                    expr.keyword.line), (access, slot) -> {
+            expr.thisAccess = access;
+            expr.thisSlot = slot;
+        });
         return null;
     }
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
+        Variable variable = declare(stmt.name);
+        setSlot(variable, (access, slot) -> {
+            stmt.slot = slot;
+            stmt.isCell = access == Access.LOCAL_CELL;
+        });
         if (stmt.initializer != null) {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+        complete(variable);
         return null;
     }
 
     @Override
     public Void visitGetExpr(Expr.Get expr) {
         resolve(expr.object);
+        expr.cache = new InlineCache("get", expr.name);
         return null;
     }
 
@@ -143,6 +230,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitSetExpr(Expr.Set expr) {
         resolve(expr.value);
         resolve(expr.object);
+        expr.cache = new InlineCache("set", expr.name);
         return null;
     }
 
@@ -153,39 +241,56 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                     "Cannot use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword, (access, slot) -> {
+            expr.access = access;
+            expr.slot = slot;
+        });
         return null;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty()) {
-            Variable variable = scopes.peek().get(expr.name.literal);
+        if (scope != null) {
+            Variable variable = scope.variables.get(expr.name.lexeme);
             if (variable != null && variable.state == VariableState.DECLARED) {
                 Lox.error(expr.name,
                         "Cannot read local variable in its own initializer.");
             }
         }
-        resolveLocal(expr, expr.name);
+        Variable variable = resolveLocal(expr.name, (access, slot) -> {
+            expr.access = access;
+            expr.slot = slot;
+        });
+        if (variable == null) expr.global = globalCell(expr.name);
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Variable variable = resolveLocal(expr.name, (access, slot) -> {
+            expr.access = access;
+            expr.slot = slot;
+        });
+        if (variable == null) {
+            expr.global = globalCell(expr.name);
+        } else {
+            variable.mayChange = true;
+            variable.assignments++;
+        }
         return null;
     }
 
     @Override
     public Void visitLambdaExpr(Expr.Lambda function) {
-        beginScope();
-        for (Token param : function.params) {
-            declare(param);
-            define(param);
-        }
+        beginScope(true);
+        declareParams(function.params);
         resolve(function.body);
-        endScope();
+        endScope(frame -> {
+            function.frameSize = frame.frameSize;
+            function.captures = captures(frame);
+            function.cellSlots = cellSlots(frame, function.params);
+        });
         return null;
     }
 
@@ -212,9 +317,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
+        Variable variable = declare(stmt.name);
+        setSlot(variable, (access, slot) -> {
+            stmt.slot = slot;
+            stmt.isCell = access == Access.LOCAL_CELL;
+        });
         define(stmt.name);
         resolveFunction(stmt, FunctionType.FUNCTION);
+        // the function captures itself before it's defined when it recurses
+        complete(variable);
         return null;
     }
 
@@ -226,9 +337,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitIfStmt(Stmt.If stmt) {
-        resolve(stmt.condition);
-        resolve(stmt.thenBranch);
-        if (stmt.elseBranch != null) resolve(stmt.elseBranch);
+        // else-if chains are walked in a loop rather than a call per link
+        Stmt link = stmt;
+        while (link instanceof Stmt.If) {
+            Stmt.If ifStmt = (Stmt.If)link;
+            resolve(ifStmt.condition);
+            resolve(ifStmt.thenBranch);
+            link = ifStmt.elseBranch;
+        }
+        if (link != null) resolve(link);
         return null;
     }
 
@@ -249,6 +366,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                         "Cannot return a value from an initializer.");
             }
             resolve(stmt.value);
+            // the call is the last thing the function does, so it can run
+            // after the function's own frame is gone
+            stmt.isTailCall = stmt.value instanceof Expr.Call;
         }
         return null;
     }
@@ -256,19 +376,119 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         LoopType enclosingLoop = currentLoop;
-        currentLoop = stmt.isForLoop ? LoopType.FOR : LoopType.WHILE;
+        currentLoop = LoopType.WHILE;
+
+        resolve(stmt.condition);
+        resolve(stmt.body);
+
+        currentLoop = enclosingLoop;
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        LoopType enclosingLoop = currentLoop;
+        currentLoop = LoopType.FOR;
 
+        Variable counter = counter(stmt);
+        int assignments = counter == null ? 0 : counter.assignments;
         resolve(stmt.condition);
         resolve(stmt.body);
+        // the interpreter keeps the counter in a Java local between
+        // iterations, so neither the condition nor the body may change it
+        // behind its back
+        if (counter != null && counter.assignments == assignments) {
+            fixups.add(() -> stmt.isCounted = !counter.isCell());
+        }
+        if (stmt.increment != null) resolve(stmt.increment);
 
         currentLoop = enclosingLoop;
         return null;
     }
 
+    // The local variable i of a loop shaped like
+    // `for (...; i < limit; i = i + step)`, where step is a number, or
+    // null if the loop has some other shape.
+    private Variable counter(Stmt.For stmt) {
+        if (!(stmt.condition instanceof Expr.Binary)
+                || !(stmt.increment instanceof Expr.Assign)) {
+            return null;
+        }
+        Expr.Binary condition = (Expr.Binary)stmt.condition;
+        TokenType comparison = condition.operator.type;
+        if ((comparison != TokenType.LESS
+                    && comparison != TokenType.LESS_EQUAL)
+                || !(condition.left instanceof Expr.Variable)) {
+            return null;
+        }
+        String name = ((Expr.Variable)condition.left).name.lexeme;
+
+        Expr.Assign increment = (Expr.Assign)stmt.increment;
+        if (!increment.name.lexeme.equals(name)
+                || !(increment.value instanceof Expr.Binary)) {
+            return null;
+        }
+        Expr.Binary sum = (Expr.Binary)increment.value;
+        if (sum.operator.type != TokenType.PLUS
+                || !(sum.left instanceof Expr.Variable)
+                || !((Expr.Variable)sum.left).name.lexeme.equals(name)
+                || !(sum.right instanceof Expr.Literal)
+                || !(((Expr.Literal)sum.right).value instanceof Double)) {
+            return null;
+        }
+
+        for (Scope declaring = scope; declaring != null;
+                declaring = declaring.enclosing) {
+            Variable variable = declaring.variables.get(name);
+            if (variable == null) continue;
+            return declaring.frame == scope.frame ? variable : null;
+        }
+        return null;
+    }
+
     @Override
     public Void visitBinaryExpr(Expr.Binary expr) {
-        resolve(expr.left);
-        resolve(expr.right);
+        resolveOperands(expr);
+        return null;
+    }
+
+    // A chain like a + b + c + ... parses into a tree that leans left as
+    // deep as the chain is long, so its left spine is walked in a loop and
+    // the right operands resolved on the way back up, in source order.
+    private void resolveOperands(Expr expr) {
+        Expr top = expr;
+        List<Expr> rights = new ArrayList<>();
+        while (true) {
+            if (expr instanceof Expr.Binary) {
+                rights.add(((Expr.Binary)expr).right);
+                expr = ((Expr.Binary)expr).left;
+            } else if (expr instanceof Expr.Logical) {
+                rights.add(((Expr.Logical)expr).right);
+                expr = ((Expr.Logical)expr).left;
+            } else {
+                break;
+            }
+        }
+        resolve(expr);
+        for (int i = rights.size() - 1; i >= 0; i--) {
+            resolve(rights.get(i));
+        }
+        markChain(top, rights.size());
+    }
+
+    static void markChain(Expr top, int length) {
+        if (length < LONG_CHAIN) return;
+        if (top instanceof Expr.Binary) {
+            ((Expr.Binary)top).isLongChain = true;
+        } else if (top instanceof Expr.Logical) {
+            ((Expr.Logical)top).isLongChain = true;
+        }
+    }
+
+    @Override
+    public Void visitFusedBinaryExpr(Expr.FusedBinary expr) {
+        // only the Optimizer, which runs later, makes these
+        resolve(expr.original);
         return null;
     }
 
@@ -294,8 +514,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     @Override
     public Void visitLogicalExpr(Expr.Logical expr) {
-        resolve(expr.left);
-        resolve(expr.right);
+        resolveOperands(expr);
         return null;
     }
 
@@ -305,49 +524,182 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         return null;
     }
 
-    private void beginScope() {
-        scopes.push(new HashMap<String, Variable>());
+    private void beginScope(boolean isFunction) {
+        scope = new Scope(scope, isFunction);
     }
 
-    private void endScope() {
-        Map<String, Variable> scope = scopes.pop();
-        for (Variable variable : scope.values()) {
+    // layout gets the scope once its slots have been numbered
+    private void endScope(Consumer<Scope> layout) {
+        Scope ended = scope;
+        for (Variable variable : ended.variables.values()) {
             if (variable.state != VariableState.READ) {
                 Lox.error(variable.name, "Unused variable.");
             }
         }
+        fixups.add(() -> layout.accept(ended));
+        scope = ended.enclosing;
+        if (scope == null) {
+            layOut(ended);
+            for (Runnable fixup : fixups) fixup.run();
+            fixups.clear();
+        }
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
-        Map<String, Variable> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+    // returns null for a global
+    private Variable declare(Token name) {
+        if (scope == null) return null;
+        if (scope.variables.containsKey(name.lexeme)) {
             Lox.error(name,
                     "Variable with this name already declared in this scope.");
         }
-        scope.put(name.lexeme, new Variable(name, VariableState.DECLARED));
+        Variable variable = new Variable(name, VariableState.DECLARED, scope);
+        scope.variables.put(name.lexeme, variable);
+        return variable;
     }
 
     private void define(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, new Variable(name, VariableState.DEFINED));
+        if (scope == null) return;
+        scope.variables.get(name.lexeme).state = VariableState.DEFINED;
     }
 
     // classes are an exception to unused variable rule
     private void defineClass(Token name) {
-        if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, new Variable(name, VariableState.READ));
+        if (scope == null) return;
+        scope.variables.get(name.lexeme).state = VariableState.READ;
+    }
+
+    private Cell globalCell(Token name) {
+        if (interpreter == null) return null;
+        return interpreter.globalCell(name.symbol);
+    }
+
+    private static void complete(Variable variable) {
+        if (variable != null) variable.isComplete = true;
+    }
+
+    // this and super, which are never assigned
+    private void declareImplicit(String name) {
+        Variable variable = new Variable(null, VariableState.READ, scope);
+        variable.isComplete = true;
+        scope.variables.put(name, variable);
+    }
+
+    private void declareParams(List<Token> params) {
+        for (Token param : params) {
+            Variable variable = declare(param);
+            define(param);
+            complete(variable);
+        }
+    }
+
+    private interface Resolution {
+        void set(Access access, int slot);
+    }
+
+    // Eventually passes where a declared variable lives to resolution:
+    // GLOBAL if it isn't in any local scope, otherwise LOCAL or
+    // LOCAL_CELL and its slot.
+    private void setSlot(Variable variable, Resolution resolution) {
+        if (variable == null) {
+            resolution.set(Access.GLOBAL, GLOBAL);
+        } else {
+            fixups.add(() -> resolution.set(
+                        variable.isCell() ? Access.LOCAL_CELL : Access.LOCAL,
+                        variable.slot));
+        }
+    }
+
+    // Marks the variable name refers to as read and eventually passes how
+    // to reach it from the current frame to resolution: its slot if the
+    // current frame declares it, otherwise the index of the upvalue the
+    // current closure copied it into. Returns the variable, or null for a
+    // global.
+    private Variable resolveLocal(Token name, Resolution resolution) {
+        for (Scope declaring = scope; declaring != null;
+                declaring = declaring.enclosing) {
+            Variable variable = declaring.variables.get(name.lexeme);
+            if (variable == null) continue;
+
+            variable.state = VariableState.READ;
+            if (declaring.frame == scope.frame) {
+                fixups.add(() -> resolution.set(variable.isCell()
+                            ? Access.LOCAL_CELL : Access.LOCAL,
+                            variable.slot));
+            } else {
+                variable.isCaptured = true;
+                if (!variable.isComplete) variable.mayChange = true;
+                int index = addUpvalue(scope.frame, variable);
+                fixups.add(() -> resolution.set(variable.isCell()
+                            ? Access.UPVALUE_CELL : Access.UPVALUE, index));
+            }
+            return variable;
+        }
+        resolution.set(Access.GLOBAL, GLOBAL);
+        return null;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
-        for (int i = scopes.size() - 1; i >= 0; i--) {
-            Map<String, Variable> scope = scopes.get(i);
-            if (scope.containsKey(name.lexeme)) {
-                scope.put(name.lexeme, new Variable(name, VariableState.READ));
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+    // Returns the index of the upvalue holding variable in closures
+    // created from frame, threading it through every frame in between
+    // the way clox does.
+    private static int addUpvalue(Scope frame, Variable variable) {
+        int index = frame.upvalues.indexOf(variable);
+        if (index != -1) return index;
+        Scope enclosing = frame.enclosing.frame;
+        if (enclosing != variable.scope.frame) {
+            addUpvalue(enclosing, variable);
+        }
+        frame.upvalues.add(variable);
+        return frame.upvalues.size() - 1;
+    }
+
+    // where a closure created from frame copies each of its upvalues from
+    private static Capture[] captures(Scope frame) {
+        Capture[] captures = new Capture[frame.upvalues.size()];
+        for (int i = 0; i < captures.length; i++) {
+            Variable variable = frame.upvalues.get(i);
+            Scope enclosing = frame.enclosing.frame;
+            captures[i] = enclosing == variable.scope.frame
+                ? new Capture(true, variable.slot)
+                : new Capture(false, enclosing.upvalues.indexOf(variable));
+        }
+        return captures;
+    }
+
+    // slots of the parameters a call has to move into cells
+    private static int[] cellSlots(Scope frame, List<Token> params) {
+        return params.stream()
+            .map(param -> frame.variables.get(param.lexeme))
+            .filter(Variable::isCell)
+            .mapToInt(variable -> variable.slot)
+            .toArray();
+    }
+
+    // Numbers the slots of a frame: its own variables first, then those of
+    // its blocks.
+    private static void layOut(Scope frame) {
+        int slot = 0;
+        for (Variable variable : frame.variables.values()) {
+            variable.slot = slot++;
+        }
+        frame.frameSize = layOutBlocks(frame, slot);
+    }
+
+    // Blocks that don't run at the same time, like the bodies of two
+    // loops, reuse the same slots. Returns the frame size they need.
+    private static int layOutBlocks(Scope scope, int firstSlot) {
+        int frameSize = firstSlot;
+        for (Scope child : scope.children) {
+            if (child.isFrame()) {
+                layOut(child);
+                continue;
             }
+            int slot = firstSlot;
+            for (Variable variable : child.variables.values()) {
+                variable.slot = slot++;
+            }
+            frameSize = Math.max(frameSize, layOutBlocks(child, slot));
         }
+        return frameSize;
     }
 
     private void resolveFunction(
@@ -355,13 +707,18 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         FunctionType enclosingFunction = currentFunction;
         currentFunction = type;
 
-        beginScope();
-        for (Token param : function.params) {
-            declare(param);
-            define(param);
-        }
+        beginScope(true);
+        // methods get this in slot 0 of their own frame, so calling one
+        // doesn't need an environment just to hold the receiver
+        function.isMethod = type != FunctionType.FUNCTION;
+        if (function.isMethod) declareImplicit("this");
+        declareParams(function.params);
         resolve(function.body);
-        endScope();
+        endScope(frame -> {
+            function.frameSize = frame.frameSize;
+            function.captures = captures(frame);
+            function.cellSlots = cellSlots(frame, function.params);
+        });
 
         currentFunction = enclosingFunction;
     }
@@ -1,54 +1,166 @@
 package com.craftinginterpreters.lox;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Scanner {
+    // scanTokens splits the source into pieces of at least minPiece
+    // characters and scans them on this many threads
+    static int threads = 1;
+    static int minPiece = 1 << 20;
+
     private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    private final TokenBuffer tokens;
+    private final int end;
+    // errors held back while scanning a piece of the source, null when
+    // errors go straight to Lox
+    private final List<ScanError> errors;
     private int start = 0;
     private int current = 0;
     private int line = 1;
+    // line the current token started on
+    private int tokenLine = 1;
+    // whether the source ran out inside a string or block comment
+    private boolean open = false;
+
+    private static class ScanError {
+        final int line;
+        final String message;
 
-    private static final Map<String, TokenType> keywords;
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",     AND);
-        keywords.put("break",   BREAK);
-        keywords.put("class",   CLASS);
-        keywords.put("continue",CONTINUE);
-        keywords.put("else",    ELSE);
-        keywords.put("false",   FALSE);
-        keywords.put("for",     FOR);
-        keywords.put("fun",     FUN);
-        keywords.put("if",      IF);
-        keywords.put("nil",     NIL);
-        keywords.put("or",      OR);
-        keywords.put("print",   PRINT);
-        keywords.put("return",  RETURN);
-        keywords.put("super",   SUPER);
-        keywords.put("this",    THIS);
-        keywords.put("true",    TRUE);
-        keywords.put("var",     VAR);
-        keywords.put("while",   WHILE);
+        ScanError(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
     }
 
     Scanner(String source) {
         this.source = source;
+        this.tokens = new TokenBuffer(source);
+        this.end = source.length();
+        this.errors = null;
     }
 
-    List<Token> scanTokens() {
+    // A piece is scanned with lines counted from 0; merging adds the line
+    // it turned out to start on.
+    private Scanner(String source, int begin, int end) {
+        this.source = source;
+        this.tokens = new TokenBuffer(source);
+        this.end = end;
+        this.errors = new ArrayList<>();
+        this.current = begin;
+        this.line = 0;
+    }
+
+    TokenBuffer scanTokens() {
+        if (threads > 1 && source.length() >= 2 * minPiece) {
+            return scanPieces();
+        }
+
+        scanAll();
+        tokens.add(EOF, current, 0, line);
+        return tokens;
+    }
+
+    private void scanAll() {
         while (!isAtEnd()) {
             start = current;
+            tokenLine = line;
             scanToken();
         }
+    }
 
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
+    // Splits the source just after newlines and scans each piece on a
+    // ForkJoin pool as if it started outside any token. That guess is
+    // wrong when the split falls inside a string or block comment (never
+    // a // comment, which a newline ends). The piece before such a split
+    // runs out inside the open token, so merging rescans from where that
+    // token began up to the first split it reaches outside a token, and
+    // carries on with the speculative pieces from there. The result is
+    // the same as scanning sequentially.
+    private TokenBuffer scanPieces() {
+        int[] bounds = splits();
+        int count = bounds.length - 1;
+        List<Scanner> pieces = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pieces.add(new Scanner(source, bounds[i], bounds[i + 1]));
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for (Scanner piece : pieces) {
+                tasks.add(pool.submit(piece::scanAll));
+            }
+            for (ForkJoinTask<?> task : tasks) task.join();
+        } finally {
+            pool.shutdown();
+        }
+
+        // sized for the common case where every split was outside a token
+        int size = 1;
+        for (Scanner piece : pieces) size += piece.tokens.size();
+        TokenBuffer merged = new TokenBuffer(source, size);
+
+        int base = 1;
+        int next = 0;
+        Scanner piece = null;
+        while (next < count) {
+            if (piece != null && piece.open) {
+                base -= piece.line - piece.tokenLine;
+                piece = new Scanner(source, piece.start, source.length());
+                next = piece.scanTo(bounds, next);
+            } else {
+                piece = pieces.get(next++);
+            }
+
+            merged.append(piece.tokens, base);
+            // a piece that ran out inside a token only reports it if the
+            // source really ends there
+            int reported = piece.errors.size();
+            if (piece.open && next < count) reported--;
+            for (int i = 0; i < reported; i++) {
+                ScanError error = piece.errors.get(i);
+                Lox.error(base + error.line, error.message);
+            }
+            base += piece.line;
+        }
+
+        merged.add(EOF, source.length(), 0, base);
+        return merged;
+    }
+
+    // Offsets where pieces start, plus the end of the source.
+    private int[] splits() {
+        int count = Math.min(threads * 4, source.length() / minPiece);
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        for (int i = 1; i < count; i++) {
+            int target = (int)((long)source.length() * i / count);
+            int newline = source.indexOf('\n',
+                    Math.max(target, bounds.get(bounds.size() - 1)));
+            if (newline == -1 || newline + 1 >= source.length()) break;
+            bounds.add(newline + 1);
+        }
+        bounds.add(source.length());
+        return bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // Scans on until reaching the start of a piece outside any token and
+    // returns that piece's index, or the piece count at the end of the
+    // source.
+    private int scanTo(int[] bounds, int next) {
+        while (!isAtEnd()) {
+            start = current;
+            tokenLine = line;
+            scanToken();
+            while (bounds[next] < current) next++;
+            if (bounds[next] == current) return next;
+        }
+        return bounds.length - 1;
     }
 
     private void scanToken() {
@@ -93,7 +205,7 @@ class Scanner {
             } else if (isAlpha(c)){
                 identifier();
             } else {
-                Lox.error(line, "Unexpected character.");
+                error("Unexpected character.");
                 break;
             }
         }
@@ -101,11 +213,59 @@ class Scanner {
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
-        String text = source.substring(start, current);
+        addToken(identifierType());
+    }
 
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+    // Keywords are told apart by a switch on their first letters, so
+    // scanning an identifier never builds a String to look it up.
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+        case 'a': return checkKeyword(1, "nd", AND);
+        case 'b': return checkKeyword(1, "reak", BREAK);
+        case 'c':
+            if (current - start > 1) {
+                switch (source.charAt(start + 1)) {
+                case 'l': return checkKeyword(2, "ass", CLASS);
+                case 'o': return checkKeyword(2, "ntinue", CONTINUE);
+                }
+            }
+            break;
+        case 'e': return checkKeyword(1, "lse", ELSE);
+        case 'f':
+            if (current - start > 1) {
+                switch (source.charAt(start + 1)) {
+                case 'a': return checkKeyword(2, "lse", FALSE);
+                case 'o': return checkKeyword(2, "r", FOR);
+                case 'u': return checkKeyword(2, "n", FUN);
+                }
+            }
+            break;
+        case 'i': return checkKeyword(1, "f", IF);
+        case 'n': return checkKeyword(1, "il", NIL);
+        case 'o': return checkKeyword(1, "r", OR);
+        case 'p': return checkKeyword(1, "rint", PRINT);
+        case 'r': return checkKeyword(1, "eturn", RETURN);
+        case 's': return checkKeyword(1, "uper", SUPER);
+        case 't':
+            if (current - start > 1) {
+                switch (source.charAt(start + 1)) {
+                case 'h': return checkKeyword(2, "is", THIS);
+                case 'r': return checkKeyword(2, "ue", TRUE);
+                }
+            }
+            break;
+        case 'v': return checkKeyword(1, "ar", VAR);
+        case 'w': return checkKeyword(1, "hile", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(int offset, String rest, TokenType type) {
+        if (current - start == offset + rest.length() &&
+                source.regionMatches(start + offset, rest, 0, rest.length())) {
+            return type;
+        }
+        return IDENTIFIER;
     }
 
     private void number() {
@@ -115,8 +275,7 @@ class Scanner {
             advance();
             while (isDigit(peek())) advance();
         }
-        addToken(NUMBER,
-            Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     private void string() {
@@ -127,17 +286,17 @@ class Scanner {
 
         // Unterminated string
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            open = true;
+            error("Unterminated string.");
             return;
         }
 
         // Closing "
         advance();
 
-        // Trim the surrounding quotes
-        String value = source.substring(start + 1, current - 1);
-        // NOTE if escape sequences were supported, they'd have to be unescaped here
-        addToken(STRING, value);
+        // The buffer trims the quotes when the parser asks for the literal
+        // NOTE if escape sequences were supported, they'd have to be unescaped there
+        addToken(STRING);
     }
 
     private void blockComment() {
@@ -155,7 +314,8 @@ class Scanner {
             advance();
         }
         if (level > 0) {
-            Lox.error(line, "Unterminated block comment");
+            open = true;
+            error("Unterminated block comment");
             return;
         }
     }
@@ -173,7 +333,7 @@ class Scanner {
     }
 
     private char peekNext() {
-        if (current + 1 >= source.length()) return '\0';
+        if (current + 1 >= end) return '\0';
         return source.charAt(current + 1);
     }
 
@@ -192,7 +352,15 @@ class Scanner {
     }
 
     private boolean isAtEnd() {
-        return current >= source.length();
+        return current >= end;
+    }
+
+    private void error(String message) {
+        if (errors == null) {
+            Lox.error(line, message);
+        } else {
+            errors.add(new ScanError(line, message));
+        }
     }
 
     private char advance() {
@@ -201,11 +369,6 @@ class Scanner {
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, line);
     }
 }
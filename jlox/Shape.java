@@ -0,0 +1,40 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The field layout shared by every instance that got the same fields in
+// the same order. Shapes form a transition tree rooted at each class's
+// empty shape, so adding a field that another instance already added
+// reuses the existing child instead of creating a new layout.
+class Shape {
+    private final Map<Symbol, Integer> indexes;
+    private final Map<Symbol, Shape> transitions = new HashMap<>();
+    final int size;
+
+    Shape() {
+        this(new HashMap<>());
+    }
+
+    private Shape(Map<Symbol, Integer> indexes) {
+        this.indexes = indexes;
+        this.size = indexes.size();
+    }
+
+    // -1 if instances of this shape have no such field
+    int indexOf(Symbol name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+
+    Shape withField(Symbol name) {
+        Shape shape = transitions.get(name);
+        if (shape == null) {
+            Map<Symbol, Integer> childIndexes = new HashMap<>(indexes);
+            childIndexes.put(name, size);
+            shape = new Shape(childIndexes);
+            transitions.put(name, shape);
+        }
+        return shape;
+    }
+}
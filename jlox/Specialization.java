@@ -0,0 +1,58 @@
+package com.craftinginterpreters.lox;
+
+// Type feedback for Expr.Binary and Expr.Unary. A node starts out
+// UNINITIALIZED, rewrites itself to the specialization matching the
+// operand types it sees first, and goes GENERIC for good as soon as one
+// of the specialization's type guards fails.
+enum Specialization {
+    UNINITIALIZED,
+    GENERIC,
+
+    NUMBER_ADD,
+    NUMBER_SUBTRACT,
+    NUMBER_MULTIPLY,
+    NUMBER_DIVIDE,
+    NUMBER_GREATER,
+    NUMBER_GREATER_EQUAL,
+    NUMBER_LESS,
+    NUMBER_LESS_EQUAL,
+    NUMBER_EQUAL,
+    NUMBER_NOT_EQUAL,
+    STRING_ADD,
+
+    NUMBER_NEGATE,
+    BOOLEAN_NOT;
+
+    static Specialization forBinary(TokenType operator,
+            Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator) {
+                case PLUS: return NUMBER_ADD;
+                case MINUS: return NUMBER_SUBTRACT;
+                case STAR: return NUMBER_MULTIPLY;
+                case SLASH: return NUMBER_DIVIDE;
+                case GREATER: return NUMBER_GREATER;
+                case GREATER_EQUAL: return NUMBER_GREATER_EQUAL;
+                case LESS: return NUMBER_LESS;
+                case LESS_EQUAL: return NUMBER_LESS_EQUAL;
+                case EQUAL_EQUAL: return NUMBER_EQUAL;
+                case BANG_EQUAL: return NUMBER_NOT_EQUAL;
+            }
+        }
+        if (left instanceof String && right instanceof String
+                && operator == TokenType.PLUS) {
+            return STRING_ADD;
+        }
+        return GENERIC;
+    }
+
+    static Specialization forUnary(TokenType operator, Object right) {
+        if (operator == TokenType.MINUS && right instanceof Double) {
+            return NUMBER_NEGATE;
+        }
+        if (operator == TokenType.BANG && right instanceof Boolean) {
+            return BOOLEAN_NOT;
+        }
+        return GENERIC;
+    }
+}
@@ -7,6 +7,7 @@ abstract class Stmt {
         R visitBlockStmt(Block stmt);
         R visitClassStmt(Class stmt);
         R visitExpressionStmt(Expression stmt);
+        R visitForStmt(For stmt);
         R visitFunctionStmt(Function stmt);
         R visitIfStmt(If stmt);
         R visitPrintStmt(Print stmt);
@@ -28,6 +29,8 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        int frameSize;
+        boolean hasEnvironment;
     }
 
     static class Class extends Stmt {
@@ -49,6 +52,9 @@ abstract class Stmt {
         final List<Stmt.Function> methods;
         final List<Stmt.Function> getters;
         final List<Stmt.Function> statics;
+        int slot;
+        boolean isCell;
+        int superSlot;
     }
 
     static class Expression extends Stmt {
@@ -64,6 +70,24 @@ abstract class Stmt {
         final Expr expression;
     }
 
+    static class For extends Stmt {
+        For(Expr condition, Expr increment, Stmt body) {
+            this.condition = condition;
+            this.increment = increment;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitForStmt(this);
+        }
+
+        final Expr condition;
+        final Expr increment;
+        final Stmt body;
+        boolean isCounted;
+    }
+
     static class Function extends Stmt {
         Function(Token name, List<Token> params, List<Stmt> body) {
             this.name = name;
@@ -79,6 +103,14 @@ abstract class Stmt {
         final Token name;
         final List<Token> params;
         final List<Stmt> body;
+        int slot;
+        boolean isCell;
+        int frameSize;
+        boolean isMethod;
+        Capture[] captures;
+        int[] cellSlots;
+        int callCount;
+        JitCode jitCode;
     }
 
     static class If extends Stmt {
@@ -124,6 +156,7 @@ abstract class Stmt {
 
         final Token keyword;
         final Expr value;
+        boolean isTailCall;
     }
 
     static class Var extends Stmt {
@@ -139,13 +172,14 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        int slot;
+        boolean isCell;
     }
 
     static class While extends Stmt {
-        While(Expr condition, Stmt body, boolean isForLoop) {
+        While(Expr condition, Stmt body) {
             this.condition = condition;
             this.body = body;
-            this.isForLoop = isForLoop;
         }
 
         @Override
@@ -155,7 +189,6 @@ abstract class Stmt {
 
         final Expr condition;
         final Stmt body;
-        final boolean isForLoop;
     }
 
     static class Break extends Stmt {
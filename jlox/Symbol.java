@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// An interned identifier. There is exactly one Symbol per name, so the
+// runtime's name-keyed tables hash on the precomputed id and compare keys
+// by identity instead of hashing and comparing characters on every lookup.
+final class Symbol {
+    private static final Map<String, Symbol> table = new HashMap<>();
+
+    static final Symbol INIT = intern("init");
+
+    final String name;
+    final int id;
+
+    private Symbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    static Symbol intern(String name) {
+        Symbol symbol = table.get(name);
+        if (symbol == null) {
+            symbol = new Symbol(name, table.size());
+            table.put(name, symbol);
+        }
+        return symbol;
+    }
+
+    // equals() is left as Object's identity comparison
+    @Override
+    public int hashCode() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
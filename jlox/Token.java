@@ -5,12 +5,15 @@ class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // interned name, for identifiers only
+    final Symbol symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = type == TokenType.IDENTIFIER ? Symbol.intern(lexeme) : null;
     }
 
     public String toString() {
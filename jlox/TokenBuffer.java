@@ -0,0 +1,98 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+// The scanner's output, kept as parallel arrays instead of one Token
+// object per token. A token costs 13 bytes here; lexemes and literals
+// are cut out of the source only when the parser asks for a Token.
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final String source;
+    private byte[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int count = 0;
+
+    TokenBuffer(String source) {
+        this(source, 256);
+    }
+
+    TokenBuffer(String source, int capacity) {
+        this.source = source;
+        this.types = new byte[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.lines = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        types[count] = (byte)type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        count++;
+    }
+
+    // Adds other's tokens, shifting their lines by lineOffset.
+    void append(TokenBuffer other, int lineOffset) {
+        if (count + other.count > types.length) {
+            int capacity = Math.max(count + other.count, count * 2);
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        System.arraycopy(other.types, 0, types, count, other.count);
+        System.arraycopy(other.starts, 0, starts, count, other.count);
+        System.arraycopy(other.lengths, 0, lengths, count, other.count);
+        for (int i = 0; i < other.count; i++) {
+            lines[count + i] = other.lines[i] + lineOffset;
+        }
+        count += other.count;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    String lexeme(int index) {
+        return source.substring(starts[index], starts[index] + lengths[index]);
+    }
+
+    Object literal(int index) {
+        switch (type(index)) {
+        case NUMBER:
+            return Double.parseDouble(lexeme(index));
+        case STRING:
+            // Trim the surrounding quotes
+            return source.substring(starts[index] + 1,
+                                    starts[index] + lengths[index] - 1);
+        default:
+            return null;
+        }
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index),
+                         lines[index]);
+    }
+}
@@ -0,0 +1,722 @@
+package com.craftinginterpreters.lox;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+// Stack-based virtual machine for the chunks produced by BytecodeCompiler,
+// following clox/vm.c. Values are plain Java objects, as in the
+// tree-walking Interpreter: nil is null, numbers are Doubles and strings
+// are Strings.
+class VM {
+    // Call depth at which a script gets "Stack overflow.". Frames and
+    // the value stack live on the heap and grow on demand, so this is the
+    // only bound on recursion besides the heap itself.
+    static int maxFrames = 1_000_000;
+    private static final int INITIAL_FRAMES = 64;
+    // stack slots a single frame may use: 256 locals, as in clox
+    private static final int FRAME_SLOTS = 256;
+    private static final int MAX_STACK = Integer.MAX_VALUE - 8;
+
+    private static final Object uninitialized = new Object();
+    private static final Object undefined = new Object();
+
+    private static class CallFrame {
+        ObjClosure closure;
+        int ip;
+        int slots;
+    }
+
+    private static class VmError extends RuntimeException {
+        int line = -1;
+
+        VmError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private CallFrame[] frames =
+        new CallFrame[Math.min(INITIAL_FRAMES, maxFrames)];
+    private int frameCount = 0;
+    private Object[] stack = new Object[INITIAL_FRAMES * FRAME_SLOTS];
+    private int stackTop = 0;
+    // Globals live in an array indexed by the slot BytecodeCompiler gives
+    // each name. A slot holds undefined until its definition runs, which
+    // lets the REPL define a name after code that uses it.
+    private final Map<String, Integer> globalSlots = new HashMap<>();
+    private String[] globalNames = new String[64];
+    private Object[] globals = new Object[64];
+    private ObjUpvalue openUpvalues = null;
+
+    VM() {
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new CallFrame();
+        }
+
+        defineNative("clock", 0, args ->
+                (double)System.currentTimeMillis() / 1000.0);
+
+        defineNative("open", 2, args -> {
+            try {
+                String path = (String)(args[0]);
+                LoxFile.FileMode mode = null;
+                switch ((String)(args[1])) {
+                case "r": mode = LoxFile.FileMode.READ; break;
+                case "w": mode = LoxFile.FileMode.WRITE; break;
+                default:
+                    throw new VmError("Invalid file mode.");
+                }
+                return new LoxFile(path, mode);
+            } catch (FileNotFoundException error) {
+                throw new VmError("Failed to open file.");
+            } catch (IOException error) {
+                throw new VmError("Failed to open file.");
+            }
+        });
+
+        defineNative("close", 1, args -> {
+            ((LoxFile)(args[0])).close();
+            return null;
+        });
+
+        defineNative("read", 1, args -> ((LoxFile)(args[0])).read());
+
+        defineNative("write", 2, args -> {
+            ((LoxFile)(args[0])).write((String)(args[1]));
+            return null;
+        });
+    }
+
+    private void defineNative(String name, int arity, ObjNative.NativeFn function) {
+        globals[globalSlot(name)] = new ObjNative(arity, function);
+    }
+
+    int globalSlot(String name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+
+        int count = globalSlots.size();
+        if (count == globals.length) {
+            globalNames = Arrays.copyOf(globalNames, count * 2);
+            globals = Arrays.copyOf(globals, count * 2);
+        }
+        globalNames[count] = name;
+        globals[count] = undefined;
+        globalSlots.put(name, count);
+        return count;
+    }
+
+    void interpret(ObjFunction script) {
+        ObjClosure closure = new ObjClosure(script);
+        push(closure);
+        try {
+            call(closure, 0);
+            run(0);
+        } catch (VmError error) {
+            Lox.runtimeError(error.line, error.getMessage());
+        }
+        resetStack();
+    }
+
+    private void resetStack() {
+        for (int i = 0; i < stackTop; i++) {
+            stack[i] = null;
+        }
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    // Runs until the frame at index exitFrame returns. Normally that's
+    // the script, but getters called from OP_INVOKE get a nested loop.
+    private void run(int exitFrame) {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.closure.function.chunk.code;
+        Object[] constants = frame.closure.function.chunk.constants;
+        int slots = frame.slots;
+        int ip = frame.ip;
+        Object[] stack = this.stack;
+        int sp = stackTop;
+
+        try {
+            for (;;) {
+                switch (code[ip++]) {
+                    case OP_CONSTANT: {
+                        int index = readShort(code, ip);
+                        ip += 2;
+                        stack[sp++] = constants[index];
+                        break;
+                    }
+                    case OP_NIL: stack[sp++] = null; break;
+                    case OP_TRUE: stack[sp++] = true; break;
+                    case OP_FALSE: stack[sp++] = false; break;
+                    case OP_UNINITIALIZED: stack[sp++] = uninitialized; break;
+                    case OP_POP: sp--; break;
+                    case OP_GET_LOCAL:
+                        stack[sp++] = stack[slots + (code[ip++] & 0xff)];
+                        break;
+                    case OP_SET_LOCAL:
+                        stack[slots + (code[ip++] & 0xff)] = stack[sp - 1];
+                        break;
+                    case OP_GET_GLOBAL: {
+                        int slot = readShort(code, ip);
+                        ip += 2;
+                        Object value = globals[slot];
+                        if (value == undefined) {
+                            throw error("Undefined variable '"
+                                    + globalNames[slot] + "'.");
+                        }
+                        if (value == uninitialized) {
+                            throw error("Uninitialized variable '"
+                                    + globalNames[slot] + "'.");
+                        }
+                        stack[sp++] = value;
+                        break;
+                    }
+                    case OP_DEFINE_GLOBAL:
+                        globals[readShort(code, ip)] = stack[--sp];
+                        ip += 2;
+                        break;
+                    case OP_SET_GLOBAL: {
+                        int slot = readShort(code, ip);
+                        ip += 2;
+                        if (globals[slot] == undefined) {
+                            throw error("Undefined variable '"
+                                    + globalNames[slot] + "'.");
+                        }
+                        globals[slot] = stack[sp - 1];
+                        break;
+                    }
+                    case OP_GET_UPVALUE: {
+                        ObjUpvalue upvalue =
+                            frame.closure.upvalues[code[ip++] & 0xff];
+                        stack[sp++] = upvalue.location >= 0
+                            ? stack[upvalue.location]
+                            : upvalue.closed;
+                        break;
+                    }
+                    case OP_SET_UPVALUE: {
+                        ObjUpvalue upvalue =
+                            frame.closure.upvalues[code[ip++] & 0xff];
+                        if (upvalue.location >= 0) {
+                            stack[upvalue.location] = stack[sp - 1];
+                        } else {
+                            upvalue.closed = stack[sp - 1];
+                        }
+                        break;
+                    }
+                    case OP_CHECK_INITIALIZED: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        if (stack[sp - 1] == uninitialized) {
+                            throw error("Uninitialized variable '" + name + "'.");
+                        }
+                        break;
+                    }
+                    case OP_GET_PROPERTY: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        Object receiver = stack[sp - 1];
+                        if (receiver instanceof ObjInstance) {
+                            ObjInstance instance = (ObjInstance)receiver;
+                            Object value = instance.fields.get(name);
+                            if (value != null || instance.fields.containsKey(name)) {
+                                stack[sp - 1] = value;
+                                break;
+                            }
+                            ObjClosure method = instance.klass.methods.get(name);
+                            if (method != null) {
+                                stack[sp - 1] =
+                                    new ObjBoundMethod(instance, method);
+                                break;
+                            }
+                            ObjClosure getter = instance.klass.getters.get(name);
+                            if (getter == null) {
+                                throw error("Undefined property '" + name + "'.");
+                            }
+                            // the instance on the stack becomes the receiver
+                            frame.ip = ip;
+                            stackTop = sp;
+                            call(getter, 0);
+                            sp = stackTop;
+                            stack = this.stack;
+                            frame = frames[frameCount - 1];
+                            code = frame.closure.function.chunk.code;
+                            constants = frame.closure.function.chunk.constants;
+                            slots = frame.slots;
+                            ip = frame.ip;
+                        } else if (receiver instanceof ObjClass) {
+                            stack[sp - 1] =
+                                ((ObjClass)receiver).statics.get(name);
+                        } else {
+                            throw error("Only instances have properties.");
+                        }
+                        break;
+                    }
+                    case OP_SET_PROPERTY: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        if (!(stack[sp - 2] instanceof ObjInstance)) {
+                            throw error("Only instances have fields.");
+                        }
+                        ObjInstance instance = (ObjInstance)stack[sp - 2];
+                        Object value = stack[--sp];
+                        instance.fields.put(name, value);
+                        stack[sp - 1] = value;
+                        break;
+                    }
+                    case OP_GET_SUPER: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        ObjClass superclass = (ObjClass)stack[--sp];
+                        ObjClosure method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw error("Undefined property '" + name + "'.");
+                        }
+                        stack[sp - 1] =
+                            new ObjBoundMethod(stack[sp - 1], method);
+                        break;
+                    }
+                    case OP_EQUAL: {
+                        Object b = stack[--sp];
+                        stack[sp - 1] = isEqual(stack[sp - 1], b);
+                        break;
+                    }
+                    case OP_GREATER: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[sp - 1] = (double)a > (double)b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stack[sp - 1] = stringCompare(a, b) > 0;
+                        } else {
+                            throw error("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OP_GREATER_EQUAL: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[sp - 1] = (double)a >= (double)b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stack[sp - 1] = stringCompare(a, b) >= 0;
+                        } else {
+                            throw error("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OP_LESS: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[sp - 1] = (double)a < (double)b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stack[sp - 1] = stringCompare(a, b) < 0;
+                        } else {
+                            throw error("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OP_LESS_EQUAL: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[sp - 1] = (double)a <= (double)b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stack[sp - 1] = stringCompare(a, b) <= 0;
+                        } else {
+                            throw error("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OP_ADD: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[sp - 1] = (double)a + (double)b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stack[sp - 1] = (String)a + (String)b;
+                        } else {
+                            throw error("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OP_SUBTRACT: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double)a - (double)b;
+                        break;
+                    }
+                    case OP_MULTIPLY: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double)a * (double)b;
+                        break;
+                    }
+                    case OP_DIVIDE: {
+                        Object b = stack[--sp];
+                        Object a = stack[sp - 1];
+                        checkNumberOperands(a, b);
+                        stack[sp - 1] = (double)a / (double)b;
+                        break;
+                    }
+                    case OP_NOT:
+                        stack[sp - 1] = isFalsey(stack[sp - 1]);
+                        break;
+                    case OP_NEGATE: {
+                        Object value = stack[sp - 1];
+                        if (!(value instanceof Double)) {
+                            throw error("Operand must be a number.");
+                        }
+                        stack[sp - 1] = -(double)value;
+                        break;
+                    }
+                    case OP_PRINT:
+                        System.out.println(stringify(stack[--sp]));
+                        break;
+                    case OP_JUMP: {
+                        int offset = readShort(code, ip);
+                        ip += 2 + offset;
+                        break;
+                    }
+                    case OP_JUMP_IF_FALSE: {
+                        int offset = readShort(code, ip);
+                        ip += 2;
+                        if (isFalsey(stack[sp - 1])) ip += offset;
+                        break;
+                    }
+                    case OP_LOOP: {
+                        int offset = readShort(code, ip);
+                        ip += 2 - offset;
+                        break;
+                    }
+                    case OP_CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        stackTop = sp;
+                        callValue(stack[sp - 1 - argCount], argCount);
+                        sp = stackTop;
+                        stack = this.stack;
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        slots = frame.slots;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OP_INVOKE: {
+                        String name = (String)constants[readShort(code, ip)];
+                        int argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        frame.ip = ip;
+                        stackTop = sp;
+                        invoke(name, argCount);
+                        sp = stackTop;
+                        stack = this.stack;
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        slots = frame.slots;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OP_SUPER_INVOKE: {
+                        String name = (String)constants[readShort(code, ip)];
+                        int argCount = code[ip + 2] & 0xff;
+                        ip += 3;
+                        ObjClass superclass = (ObjClass)stack[--sp];
+                        frame.ip = ip;
+                        stackTop = sp;
+                        invokeFromClass(superclass, name, argCount);
+                        sp = stackTop;
+                        stack = this.stack;
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        slots = frame.slots;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OP_CLOSURE: {
+                        ObjFunction function =
+                            (ObjFunction)constants[readShort(code, ip)];
+                        ip += 2;
+                        ObjClosure closure = new ObjClosure(function);
+                        stack[sp++] = closure;
+                        for (int i = 0; i < closure.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = code[ip++] & 0xff;
+                            closure.upvalues[i] = isLocal
+                                ? captureUpvalue(slots + index)
+                                : frame.closure.upvalues[index];
+                        }
+                        break;
+                    }
+                    case OP_CLOSE_UPVALUE:
+                        closeUpvalues(sp - 1);
+                        sp--;
+                        break;
+                    case OP_RETURN: {
+                        Object result = stack[--sp];
+                        closeUpvalues(slots);
+                        frameCount--;
+                        for (int i = slots; i < sp; i++) {
+                            stack[i] = null;
+                        }
+                        sp = slots;
+                        stack[sp++] = result;
+                        if (frameCount == exitFrame) {
+                            stackTop = sp;
+                            return;
+                        }
+
+                        frame = frames[frameCount - 1];
+                        code = frame.closure.function.chunk.code;
+                        constants = frame.closure.function.chunk.constants;
+                        slots = frame.slots;
+                        ip = frame.ip;
+                        break;
+                    }
+                    case OP_CLASS: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        stack[sp++] = new ObjClass(name);
+                        break;
+                    }
+                    case OP_INHERIT: {
+                        Object superclass = stack[--sp];
+                        if (!(superclass instanceof ObjClass)) {
+                            throw error("Superclass must be a class.");
+                        }
+                        ((ObjClass)stack[--sp]).inherit((ObjClass)superclass);
+                        break;
+                    }
+                    case OP_METHOD: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        ObjClosure method = (ObjClosure)stack[--sp];
+                        ((ObjClass)stack[sp - 1]).methods.put(name, method);
+                        break;
+                    }
+                    case OP_GETTER: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        ObjClosure getter = (ObjClosure)stack[--sp];
+                        ((ObjClass)stack[sp - 1]).getters.put(name, getter);
+                        break;
+                    }
+                    case OP_STATIC_METHOD: {
+                        String name = (String)constants[readShort(code, ip)];
+                        ip += 2;
+                        ObjClosure method = (ObjClosure)stack[--sp];
+                        ((ObjClass)stack[sp - 1]).statics.put(name, method);
+                        break;
+                    }
+                }
+            }
+        } catch (VmError error) {
+            if (error.line < 0) {
+                error.line = frame.closure.function.chunk.lines[ip - 1];
+            }
+            throw error;
+        }
+    }
+
+    private static int readShort(byte[] code, int ip) {
+        return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+    }
+
+    private void push(Object value) {
+        stack[stackTop++] = value;
+    }
+
+    private Object pop() {
+        return stack[--stackTop];
+    }
+
+    private void call(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error(String.format("Expected %d arguments but got %d.",
+                        closure.function.arity, argCount));
+        }
+        if (frameCount == frames.length) growFrames();
+        if (stack.length - stackTop < FRAME_SLOTS) growStack();
+        CallFrame frame = frames[frameCount++];
+        frame.closure = closure;
+        frame.ip = 0;
+        frame.slots = stackTop - argCount - 1;
+    }
+
+    private void growFrames() {
+        if (frameCount >= maxFrames) {
+            throw error("Stack overflow.");
+        }
+        int capacity = (int)Math.min((long)frames.length * 2, maxFrames);
+        CallFrame[] newFrames = Arrays.copyOf(frames, capacity);
+        for (int i = frames.length; i < capacity; i++) {
+            newFrames[i] = new CallFrame();
+        }
+        frames = newFrames;
+    }
+
+    // Makes sure the frame being pushed has FRAME_SLOTS slots of room.
+    // run() reloads its copy of the stack after each call.
+    private void growStack() {
+        if (stack.length == MAX_STACK) throw error("Stack overflow.");
+        stack = Arrays.copyOf(stack,
+                (int)Math.min((long)stack.length * 2, MAX_STACK));
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure)callee, argCount);
+        } else if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod)callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass)callee;
+            stack[stackTop - argCount - 1] = new ObjInstance(klass);
+            ObjClosure initializer = klass.methods.get("init");
+            if (initializer != null) {
+                call(initializer, argCount);
+            } else if (argCount != 0) {
+                throw error(String.format(
+                            "Expected 0 arguments but got %d.", argCount));
+            }
+        } else if (callee instanceof ObjNative) {
+            ObjNative fn = (ObjNative)callee;
+            if (argCount != fn.arity) {
+                throw error(String.format(
+                            "Expected %d arguments but got %d.",
+                            fn.arity, argCount));
+            }
+            Object[] args = new Object[argCount];
+            System.arraycopy(stack, stackTop - argCount, args, 0, argCount);
+            Object result = fn.function.call(args);
+            stackTop -= argCount + 1;
+            push(result);
+        } else {
+            throw error("Can only call functions and classes.");
+        }
+    }
+
+    private void invoke(String name, int argCount) {
+        Object receiver = stack[stackTop - argCount - 1];
+        if (receiver instanceof ObjInstance) {
+            ObjInstance instance = (ObjInstance)receiver;
+            Object value = instance.fields.get(name);
+            if (value != null || instance.fields.containsKey(name)) {
+                stack[stackTop - argCount - 1] = value;
+                callValue(value, argCount);
+                return;
+            }
+            ObjClosure method = instance.klass.methods.get(name);
+            if (method != null) {
+                call(method, argCount);
+                return;
+            }
+            ObjClosure getter = instance.klass.getters.get(name);
+            if (getter == null) {
+                throw error("Undefined property '" + name + "'.");
+            }
+            value = callGetter(instance, getter);
+            stack[stackTop - argCount - 1] = value;
+            callValue(value, argCount);
+        } else if (receiver instanceof ObjClass) {
+            Object method = ((ObjClass)receiver).statics.get(name);
+            stack[stackTop - argCount - 1] = method;
+            callValue(method, argCount);
+        } else {
+            throw error("Only instances have properties.");
+        }
+    }
+
+    private void invokeFromClass(ObjClass klass, String name, int argCount) {
+        ObjClosure method = klass.methods.get(name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        call(method, argCount);
+    }
+
+    private Object callGetter(ObjInstance instance, ObjClosure getter) {
+        push(instance);
+        call(getter, 0);
+        run(frameCount - 1);
+        return pop();
+    }
+
+    private ObjUpvalue captureUpvalue(int local) {
+        ObjUpvalue prevUpvalue = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.location > local) {
+            prevUpvalue = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.location == local) return upvalue;
+
+        ObjUpvalue createdUpvalue = new ObjUpvalue(local);
+        createdUpvalue.next = upvalue;
+        if (prevUpvalue == null) {
+            openUpvalues = createdUpvalue;
+        } else {
+            prevUpvalue.next = createdUpvalue;
+        }
+        return createdUpvalue;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.location >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.location];
+            upvalue.location = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private VmError error(String message) {
+        return new VmError(message);
+    }
+
+    private static int stringCompare(Object a, Object b) {
+        return ((String)a).compareTo((String)b);
+    }
+
+    private void checkNumberOperands(Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) return;
+        throw error("Operands must be a number");
+    }
+
+    private static boolean isFalsey(Object value) {
+        if (value == null) return true;
+        if (value instanceof Boolean) return !(boolean)value;
+        return false;
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+        return a.equals(b);
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) return "nil";
+
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+        return object.toString();
+    }
+}
@@ -5,7 +5,7 @@ parser = ArgumentParser("generate_ast")
 parser.add_argument("output", help="output directory")
 args = parser.parse_args()
 
-def define_type(base_name, class_name, fields):
+def define_type(base_name, class_name, fields, mutable_fields):
     definition = f"    static class {class_name} extends {base_name} {{\n"
     definition += f"        {class_name}({fields}) {{\n"
 
@@ -26,6 +26,9 @@ def define_type(base_name, class_name, fields):
     for field in field_list:
         if field:
             definition += f"        final {field};\n"
+    for field in mutable_fields.split(", "):
+        if field:
+            definition += f"        {field};\n"
     definition += "    }\n\n"
     return definition
 
@@ -48,38 +51,44 @@ def define_ast(output_directory, base_name, types):
         for t in types:
             class_name = t.split(':')[0].strip()
             fields = t.split(':')[1].strip()
-            body += define_type(base_name, class_name, fields)
+            # fields after '|' are filled in after parsing
+            mutable_fields = ""
+            if '|' in fields:
+                fields, mutable_fields = (f.strip() for f in fields.split('|'))
+            body += define_type(base_name, class_name, fields, mutable_fields)
         print(body, file=file)
         print("    abstract <R> R accept(Visitor<R> visitor);", file=file)
         print("}", file=file)
 
 define_ast(args.output, "Expr", [
     "Ternary    : Expr left, Expr middle, Expr right",
-    "Assign     : Token name, Expr value",
-    "Binary     : Expr left, Token operator, Expr right",
+    "Assign     : Token name, Expr value | Access access, int slot, Cell global",
+    "Binary     : Expr left, Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED, boolean isLongChain",
     "Call       : Expr callee, Token paren, List<Expr> arguments",
-    "Get        : Expr object, Token name",
+    "FusedBinary : Binary original, int slot, double constant",
+    "Get        : Expr object, Token name | InlineCache cache",
     "Grouping   : Expr expression",
-    "Lambda     : List<Token> params, List<Stmt> body",
+    "Lambda     : List<Token> params, List<Stmt> body | int frameSize, Capture[] captures, int[] cellSlots",
     "Literal    : Object value",
-    "Logical    : Expr left, Token operator, Expr right",
-    "Set        : Expr object, Token name, Expr value",
-    "Super      : Token keyword, Token method",
-    "This       : Token keyword",
-    "Unary      : Token operator, Expr right",
-    "Variable   : Token name",
+    "Logical    : Expr left, Token operator, Expr right | boolean isLongChain",
+    "Set        : Expr object, Token name, Expr value | InlineCache cache",
+    "Super      : Token keyword, Token method | Access access, int slot, Access thisAccess, int thisSlot",
+    "This       : Token keyword | Access access, int slot",
+    "Unary      : Token operator, Expr right | Specialization specialization = Specialization.UNINITIALIZED",
+    "Variable   : Token name | Access access, int slot, Cell global",
 ])
 
 define_ast(args.output, "Stmt", [
-    "Block      : List<Stmt> statements",
-    "Class      : Token name, List<Expr.Variable> mixins, List<Stmt.Function> methods, List<Stmt.Function> getters, List<Stmt.Function> statics",
+    "Block      : List<Stmt> statements | int frameSize, boolean hasEnvironment",
+    "Class      : Token name, List<Expr.Variable> mixins, List<Stmt.Function> methods, List<Stmt.Function> getters, List<Stmt.Function> statics | int slot, boolean isCell, int superSlot",
     "Expression : Expr expression",
-    "Function   : Token name, List<Token> params, List<Stmt> body",
+    "For        : Expr condition, Expr increment, Stmt body | boolean isCounted",
+    "Function   : Token name, List<Token> params, List<Stmt> body | int slot, boolean isCell, int frameSize, boolean isMethod, Capture[] captures, int[] cellSlots, int callCount, JitCode jitCode",
     "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
     "Print      : Expr expression",
-    "Return     : Token keyword, Expr value",
-    "Var        : Token name, Expr initializer",
-    "While      : Expr condition, Stmt body, boolean isForLoop",
+    "Return     : Token keyword, Expr value | boolean isTailCall",
+    "Var        : Token name, Expr initializer | int slot, boolean isCell",
+    "While      : Expr condition, Stmt body",
     "Break      : ",
     "Continue   : Token keyword",
 ])